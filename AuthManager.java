@@ -4,32 +4,48 @@ Purpose: This class manages the authentication of users in the game.
 It allows for the creation, deletion, and validation of user accounts.
 It uses SHA3-256 hashing for password storage and requires a console for user input.
 It also handles the loading and saving of user data to a file.
+Users can be imported, exported and removed in bulk from CSV lines: each bulk change is validated
+as a whole first and then committed with one atomic write of the users file.
 
 Acclaimed AI-generated method: private static String hash(String input) 
 All the other comments I wrote were put for me to keep track while developing, they are not AI generated.
 */
 
-import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.util.*;
 import java.io.*;
 import java.util.stream.*;
 
 public class AuthManager {
-    // Path to the users file
-    private final Path usersFile;
+    // Most players a game may have; big tables play with a multi-deck shoe
+    public static final int MAX_PLAYERS = 500;
+    // Store holding the users file
+    private final GameStore store;
+    // SHA3-256 digest of each thread, so hash() does not search the security providers on every call
+    private static final ThreadLocal<MessageDigest> SHA3 = ThreadLocal.withInitial(() -> SessionTokens.digest("SHA3-256"));
+    // Prefix of a password hash in an import or export line, as opposed to a password to hash
+    public static final String HASH_PREFIX = "sha3:";
     // Map to store usernames and their hashed passwords
-    private final Map<String, String> users = new LinkedHashMap<>();
-
-    public AuthManager(Path gameDir) throws IOException {
-        // Resolve the path to the users file
-        this.usersFile = gameDir.resolve("users.txt");
-        // Create the file if it doesn't exist
-        if (Files.exists(usersFile)) {
-            for (String l: Files.readAllLines(usersFile)) {
-                String[] p = l.split(",",2);
-                if (p.length==2) users.put(p[0], p[1]);
-            }
+    private final Map<String, String> users;
+    // Index of the players (every user but admin) in seat order; null until asked for after a change
+    private List<String> players;
+    // True while changes are kept in memory until flush(), as in a batch
+    private boolean deferred = false;
+
+    // Supplies the password for a prompt; the console by default, or a password already sent by a daemon client
+    public interface Prompt {
+        String read(String prompt);
+    }
+
+    public AuthManager(GameStore store) throws IOException {
+        this.store = store;
+        // A missing users file means no users yet
+        List<String> lines = store.exists("users.txt") ? store.readLines("users.txt") : Collections.emptyList();
+        users = new LinkedHashMap<>(lines.size() * 4 / 3 + 1); // Sized once, however many users there are
+        for (String l: lines) {
+            int comma = l.indexOf(',');
+            if (comma > 0) users.put(l.substring(0, comma), l.substring(comma + 1));
         }
     }
 
@@ -38,27 +54,70 @@ public class AuthManager {
         return Collections.unmodifiableMap(users);
     }
 
+    // True if the user exists
+    public boolean exists(String name) {
+        return users.containsKey(name);
+    }
+
+    // Names of the players, admin excluded, in seat order
+    public List<String> players() {
+        if (players == null) {
+            List<String> p = new ArrayList<>(users.size());
+            for (String u: users.keySet())
+                if (!u.equals("admin")) p.add(u);
+            players = Collections.unmodifiableList(p);
+        }
+        return players;
+    }
+
     // Initializes the admin user by prompting for a password
     public void initAdmin(Console console) throws IOException {
+        initAdmin(consolePrompt(console));
+    }
+
+    // Initializes the admin user with a password read from the given prompt
+    public void initAdmin(Prompt prompt) throws IOException {
         if (!users.isEmpty()) throw new IllegalStateException("Admin already exists"); // Ensure no admin exists
-        String pwd = readHidden(console, "Set admin password: "); // Prompt for admin password
+        String pwd = prompt.read("Set admin password: "); // Prompt for admin password
         users.put("admin", hash(pwd)); // Hash and store the password
+        players = null;
         save(); // Save the updated users map to the file
     }
 
     // Adds a new user to the system
     public void addUser(String name, Console console) throws IOException {
-        if (users.size() >= 11) // Check if the maximum number of users is reached
-            throw new IllegalStateException("Maximum number of users reached (10)");
+        addUser(name, consolePrompt(console));
+    }
+
+    // Adds a new user whose password is read from the given prompt
+    public void addUser(String name, Prompt prompt) throws IOException {
+        if (users.size() > maxPlayers()) // Check if the maximum number of users is reached (admin is not a player)
+            throw new IllegalStateException(tooMany());
         if ("admin".equalsIgnoreCase(name)) // Ensure 'admin' is reserved
             throw new IllegalArgumentException("'admin' reserved");
+        if (!validName(name)) // The name is also the hand file's name
+            throw new IllegalArgumentException("Invalid name " + name + " (letters, digits, '.', '_' and '-')");
         if (users.containsKey(name)) // Check if the user already exists
             throw new IllegalArgumentException("User already exists");
-        String pwd = readHidden(console, "Password for " + name + ": "); // Prompt for the user's password
+        String pwd = prompt.read("Password for " + name + ": "); // Prompt for the user's password
         users.put(name, hash(pwd)); // Hash and store the password
+        players = null;
         save(); // Save the updated users map to the file
     }
 
+    // Most players the game can seat: MAX_PLAYERS, or fewer where the store could not hold a dealt table of them
+    public int maxPlayers() {
+        return (int) Math.min(MAX_PLAYERS, store.capacity() / GameStore.SEAT_BYTES);
+    }
+
+    // Error for a table past maxPlayers(), naming the store's limit when that is the one reached
+    private String tooMany() {
+        int max = maxPlayers();
+        if (max == MAX_PLAYERS) return "Maximum number of users reached (" + MAX_PLAYERS + ")";
+        return "Maximum number of users reached (" + max + "): a bigger table would not fit in the "
+            + (store.capacity() >> 10) + " KB that " + store.id() + " may take; use a store file with bigger slots";
+    }
+
     // Removes a user from the system
     public void removeUser(String name) throws IOException {
         if (!users.containsKey(name)) // Ensure the user exists
@@ -66,31 +125,153 @@ public class AuthManager {
         if ("admin".equalsIgnoreCase(name)) // Prevent removal of the admin user
             throw new IllegalArgumentException("You cannot remove 'admin'");
         users.remove(name); // Remove the user from the map
+        players = null;
         save(); // Save the updated users map to the file
     }
 
+    // Adds the users of "name,password" or "name,sha3:<hash>" lines; blank lines and # comments are skipped.
+    // Every line is checked before anything changes; the passwords are hashed in parallel
+    // and the users file is written once, atomically. Returns the number of users added.
+    public int importUsers(List<String> lines) throws IOException {
+        Map<String, String> added = new LinkedHashMap<>(); // Name to password or hash
+        List<String> errors = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String l = lines.get(i); // Only the name is trimmed: the password is taken exactly as written
+            if (l.trim().isEmpty() || l.trim().startsWith("#")) continue;
+            int comma = l.indexOf(',');
+            String name = comma < 0 ? l.trim() : l.substring(0, comma).trim();
+            String error = null;
+            if (comma < 0) error = "expected name,password or name," + HASH_PREFIX + "<hash>";
+            else if (comma == l.length() - 1) error = "empty password for " + name;
+            else if (!validName(name)) error = "invalid name " + name;
+            else if ("admin".equalsIgnoreCase(name)) error = "'admin' reserved";
+            else if (users.containsKey(name)) error = "user " + name + " already exists";
+            else if (added.containsKey(name)) error = "user " + name + " is listed twice";
+            else if (l.startsWith(HASH_PREFIX, comma + 1) && !validHash(l.substring(comma + 1 + HASH_PREFIX.length())))
+                error = "invalid hash for " + name;
+            if (error != null) errors.add("line " + (i + 1) + ": " + error);
+            else added.put(name, l.substring(comma + 1));
+        }
+        if (users.size() - 1 + added.size() > maxPlayers()) // Admin is not a player
+            errors.add(tooMany());
+        if (!errors.isEmpty()) throw new IllegalArgumentException(summary("Nothing imported", errors));
+        String[] names = added.keySet().toArray(new String[0]);
+        String[] hashes = added.values().parallelStream() // SHA3 per thread, so the digests run side by side
+            .map(v -> v.startsWith(HASH_PREFIX) ? v.substring(HASH_PREFIX.length()) : hash(v))
+            .toArray(String[]::new);
+        for (int i = 0; i < names.length; i++) users.put(names[i], hashes[i]);
+        players = null;
+        commit();
+        return names.length;
+    }
+
+    // Lines for importUsers with the hash of every player, admin excluded
+    public List<String> exportUsers() {
+        List<String> out = new ArrayList<>(users.size());
+        for (Map.Entry<String, String> e: users.entrySet())
+            if (!e.getKey().equals("admin")) out.add(e.getKey() + "," + HASH_PREFIX + e.getValue());
+        return out;
+    }
+
+    // Removes the users named by the lines, one per line or the first field of an export line;
+    // checked as a whole and written once, atomically. Returns the names removed.
+    public List<String> removeUsers(List<String> lines) throws IOException {
+        Set<String> removed = new LinkedHashSet<>();
+        List<String> errors = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String l = lines.get(i).trim();
+            if (l.isEmpty() || l.startsWith("#")) continue;
+            int comma = l.indexOf(',');
+            String name = comma < 0 ? l : l.substring(0, comma).trim();
+            if ("admin".equalsIgnoreCase(name)) errors.add("line " + (i + 1) + ": you cannot remove 'admin'");
+            else if (!users.containsKey(name)) errors.add("line " + (i + 1) + ": user " + name + " does not exist");
+            else removed.add(name);
+        }
+        if (!errors.isEmpty()) throw new IllegalArgumentException(summary("Nothing removed", errors));
+        users.keySet().removeAll(removed);
+        players = null;
+        commit();
+        return new ArrayList<>(removed);
+    }
+
+    // A user name that is safe as a hand file name and in the users file
+    private static boolean validName(String name) {
+        return name.matches("[A-Za-z0-9._-]+") && !name.equals(".") && !name.equals("..");
+    }
+
+    // A Base64 SHA3-256 hash, as stored in the users file
+    private static boolean validHash(String h) {
+        try {
+            return Base64.getDecoder().decode(h).length == 32;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // The first few errors of a bulk change, and how many there were
+    private static String summary(String what, List<String> errors) {
+        int shown = Math.min(errors.size(), 5);
+        return what + ", " + errors.size() + (errors.size() == 1 ? " error: " : " errors: ")
+            + String.join("; ", errors.subList(0, shown)) + (shown < errors.size() ? "; ..." : "");
+    }
+
     // Validates the admin password
     public void requireAdmin(Console console) {
-        String pwd = readHidden(console, "Admin password: "); // Prompt for the admin password
+        requireAdmin(consolePrompt(console));
+    }
+
+    // Validates the admin password read from the given prompt
+    public void requireAdmin(Prompt prompt) {
+        String pwd = prompt.read("Admin password: "); // Prompt for the admin password
         if (!hash(pwd).equals(users.get("admin"))) // Compare the hashed password with the stored hash
             throw new SecurityException("Password admin incorrect"); // Throw an exception if incorrect
     }
 
     // Validates a user's password
     public void requireUser(String user, Console console) {
+        requireUser(user, consolePrompt(console));
+    }
+
+    // Validates a user's password read from the given prompt
+    public void requireUser(String user, Prompt prompt) {
         if (!users.containsKey(user)) // Ensure the user exists
             throw new SecurityException("Unknown User");
-        String pwd = readHidden(console, "Password for " + user + ": "); // Prompt for the user's password
+        String pwd = prompt.read("Password for " + user + ": "); // Prompt for the user's password
         if (!hash(pwd).equals(users.get(user))) // Compare the hashed password with the stored hash
             throw new SecurityException("Incorrect password"); // Throw an exception if incorrect
     }
 
+    // Keeps user changes in memory until flush() instead of rewriting the file for each one
+    public void defer() { deferred = true; }
+
+    // Writes the changes kept since defer() and goes back to saving every change
+    public void flush() throws IOException {
+        deferred = false;
+        save();
+    }
+
     // Saves the users map to the file
     private void save() throws IOException {
-        List<String> out = users.entrySet().stream()
+        if (deferred) return; // flush() writes them all at once
+        store.write("users.txt", lines()); // Write the list to the file
+    }
+
+    // Replaces the users file atomically and forces it to disk, for bulk changes
+    private void commit() throws IOException {
+        if (deferred) return;
+        store.replace(Collections.singletonMap("users.txt", GameStore.text(lines())));
+    }
+
+    // The users map as "username,hash" lines
+    private List<String> lines() {
+        return users.entrySet().stream()
             .map(e -> e.getKey() + "," + e.getValue()) // Convert each entry to a "username,hash" string
             .collect(Collectors.toList());
-        Files.write(usersFile, out); // Write the list to the file
+    }
+
+    // Wraps a console as a prompt; the console check is deferred until a password is actually needed
+    public static Prompt consolePrompt(Console console) {
+        return p -> readHidden(console, p);
     }
 
     // Reads a password from the console without echoing it
@@ -105,18 +286,15 @@ public class AuthManager {
     AI Prompt: "Write a method that takes a string as input and returns its SHA3-256 hash as a Base64 encoded string.
     The method should handle exceptions and use UTF-8 encoding for the input string."
     Detailed Explanation: As per the requirements, the method takes a string input, computes its SHA3-256 hash,
-    and returns the hash as a Base64 encoded string. It handles exceptions that may occur during hashing or encoding.
+    and returns the hash as a Base64 encoded string. Nothing is caught: the SHA3 digest of the thread is created once,
+    by SHA3 above, and a missing algorithm fails there.
     It was needed to ensure the security of user passwords by hashing them before storage.
     The method uses the MessageDigest class to compute the hash and the Base64 class to encode it.
     The UTF-8 encoding is specified to ensure compatibility with a wide range of characters.
     */
     private static String hash(String input) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA3-256"); // AI Generated
-            byte[] b = md.digest(input.getBytes("UTF-8")); // AI Generated
-            return Base64.getEncoder().encodeToString(b); // AI Generated
-        } catch (Exception e) {
-            throw new RuntimeException(e); // AI Generated
-        }
+        MessageDigest md = SHA3.get(); // Looked up once per thread
+        byte[] b = md.digest(input.getBytes(StandardCharsets.UTF_8)); // AI Generated
+        return Base64.getEncoder().encodeToString(b); // AI Generated
     }
 }
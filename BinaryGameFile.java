@@ -0,0 +1,163 @@
+/*
+Purpose: This class reads and writes the optional binary game file (game.bin).
+It holds what state.txt, turn.txt, draw.txt, discard.txt and the hand files hold, in a few hundred bytes:
+a fixed header (magic, version, state, hasDrawn, currentIdx, journal sequence number, deck seed)
+followed by the piles and hands with one byte per card.
+The file is read through a MappedByteBuffer, so loading is one mapping instead of parsing lines.
+Passwords stay in users.txt.
+*/
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class BinaryGameFile {
+    public static final String FILE = "game.bin"; // File name inside the game directory
+
+    private static final int MAGIC = 0x43384753; // "C8GS"
+    private static final short VERSION = 2; // Format version in the header
+
+    // Header layout
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_VERSION = 4;
+    private static final int OFF_STATE = 6;
+    private static final int OFF_HAS_DRAWN = 7;
+    private static final int OFF_CURRENT = 8;
+    private static final int OFF_SEQ = 12;
+    private static final int OFF_DRAW_COUNT = 20;
+    private static final int OFF_DISCARD_COUNT = 22;
+    private static final int OFF_PLAYER_COUNT = 24;
+    private static final int OFF_SEED = 26;
+    private static final int OFF_SHUFFLES = 34;
+    private static final int HEADER = 38;
+
+    private final ByteBuffer buf; // Read-only mapping of the whole file
+
+    private BinaryGameFile(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    // True if the game in dir uses the binary format
+    public static boolean exists(Path dir) {
+        return Files.exists(dir.resolve(FILE));
+    }
+
+    // Maps the game file read-only and checks its header
+    public static BinaryGameFile map(Path dir) throws IOException {
+        try (FileChannel ch = FileChannel.open(dir.resolve(FILE), StandardOpenOption.READ)) {
+            MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            Metrics.read(mb.capacity());
+            if (mb.capacity() < HEADER || mb.getInt(OFF_MAGIC) != MAGIC)
+                throw new IllegalStateException("Not a Crazy Eights game file");
+            short version = mb.getShort(OFF_VERSION);
+            if (version != VERSION)
+                throw new IllegalStateException("Unsupported game file version " + version);
+            return new BinaryGameFile(mb);
+        }
+    }
+
+    public int state() { return buf.get(OFF_STATE); }
+    public boolean hasDrawn() { return buf.get(OFF_HAS_DRAWN) != 0; }
+    public int currentIdx() { return buf.getInt(OFF_CURRENT); }
+    public long seq() { return buf.getLong(OFF_SEQ); }
+    public long seed() { return buf.getLong(OFF_SEED); }
+    public int shuffles() { return buf.getInt(OFF_SHUFFLES); }
+
+    // Cards of the draw pile, top first
+    public List<Card> drawPile() {
+        return cards(HEADER, count(OFF_DRAW_COUNT));
+    }
+
+    // Cards of the discard pile, top last
+    public List<Card> discardPile() {
+        return cards(HEADER + count(OFF_DRAW_COUNT), count(OFF_DISCARD_COUNT));
+    }
+
+    // Hands by player name, in seating order
+    public Map<String, List<Card>> hands() {
+        Map<String, List<Card>> hands = new LinkedHashMap<>();
+        int pos = HEADER + count(OFF_DRAW_COUNT) + count(OFF_DISCARD_COUNT);
+        for (int i = 0, n = count(OFF_PLAYER_COUNT); i < n; i++) {
+            int len = buf.get(pos) & 0xFF;
+            byte[] name = new byte[len];
+            buf.get(pos + 1, name);
+            pos += 1 + len;
+            int size = buf.getShort(pos) & 0xFFFF;
+            hands.put(new String(name, StandardCharsets.UTF_8), cards(pos + 2, size));
+            pos += 2 + size;
+        }
+        return hands;
+    }
+
+    private int count(int off) { return buf.getShort(off) & 0xFFFF; }
+
+    // Decodes n one-byte cards starting at pos
+    private List<Card> cards(int pos, int n) {
+        List<Card> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) out.add(decode(buf.get(pos + i)));
+        return out;
+    }
+
+    // Encodes a whole game; the journal sequence number is filled in by write()
+    public static byte[] encode(int state, int currentIdx, boolean hasDrawn, Deck deck,
+                                Map<String, ? extends Collection<Card>> hands) {
+        List<Card> draw = deck.getDrawPile();
+        List<Card> discard = deck.getDiscardPile();
+        int size = HEADER + draw.size() + discard.size();
+        for (Map.Entry<String, ? extends Collection<Card>> e: hands.entrySet())
+            size += 1 + e.getKey().getBytes(StandardCharsets.UTF_8).length + 2 + e.getValue().size();
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.putInt(MAGIC).putShort(VERSION).put((byte) state).put((byte) (hasDrawn ? 1 : 0)).putInt(currentIdx).putLong(0);
+        b.putShort((short) draw.size()).putShort((short) discard.size()).putShort((short) hands.size());
+        b.putLong(deck.getSeed()).putInt(deck.getShuffles());
+        for (Card c: draw) b.put(encode(c));
+        for (Card c: discard) b.put(encode(c));
+        for (Map.Entry<String, ? extends Collection<Card>> e: hands.entrySet()) {
+            byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+            if (name.length > 255) throw new IllegalArgumentException("Name too long: " + e.getKey());
+            b.put((byte) name.length).put(name).putShort((short) e.getValue().size());
+            for (Card c: e.getValue()) b.put(encode(c));
+        }
+        return b.array();
+    }
+
+    // Writes an encoded game as the snapshot for seq; the rename makes the swap atomic
+    public static void write(Path dir, byte[] image, long seq) throws IOException {
+        Path tmp = dir.resolve(FILE + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_WRITE, 0, image.length);
+            mb.put(image);
+            mb.putLong(OFF_SEQ, seq);
+            mb.force();
+            Metrics.wrote(image.length);
+        }
+        Files.move(tmp, dir.resolve(FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Patches the state byte in place
+    public static void writeState(Path dir, int state) throws IOException {
+        patch(dir, OFF_STATE, (byte) state);
+    }
+
+    private static void patch(Path dir, int off, byte value) throws IOException {
+        try (FileChannel ch = FileChannel.open(dir.resolve(FILE), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            mb.put(off, value);
+            mb.force();
+            Metrics.wrote(1);
+        }
+    }
+
+    // One byte per card: its ordinal
+    private static byte encode(Card c) {
+        return (byte) c.ordinal();
+    }
+
+    private static Card decode(byte b) {
+        return Card.of(b);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+Purpose: This interface is a pluggable bot for the simulator: given its hand and the top discard,
+it picks which playable card to put down, or draws.
+A bot that searches (MonteCarloBot) also looks at what everyone can see of the table, a View;
+callers only build one for bots whose seesTable() is true.
+The built-in bots are looked up by name with BotStrategy.of, e.g. "--bots first,greedy" or "--bots mcts:50,greedy".
+*/
+
+import java.util.*;
+
+public interface BotStrategy {
+    // Picks a card from playable (a non-empty bitset of card ordinals in the hand),
+    // or returns null to draw (before drawing) or pass (after drawing)
+    Card choose(Player self, Card top, long playable, boolean hasDrawn, SplittableRandom rnd);
+
+    // Same, for a bot that also looks at the rest of the table
+    default Card choose(View table, Player self, Card top, long playable, boolean hasDrawn, SplittableRandom rnd) {
+        return choose(self, top, playable, hasDrawn, rnd);
+    }
+
+    // True if the bot uses the View, which costs its caller a pass over the discard pile
+    default boolean seesTable() {
+        return false;
+    }
+
+    // What every player can see of the table: hand sizes, the draw pile's size and the discard pile
+    final class View {
+        final int[] handSizes; // Cards in each hand in turn order, the bot's own first
+        final int drawCount; // Cards in the draw pile
+        final int[] discards; // Copies of each card ordinal in the discard pile, top included
+
+        public View(int[] handSizes, int drawCount, int[] discards) {
+            this.handSizes = handSizes;
+            this.drawCount = drawCount;
+            this.discards = discards;
+        }
+    }
+
+    // Plays the lowest card it can
+    BotStrategy FIRST = (self, top, playable, hasDrawn, rnd) -> Card.of(Long.numberOfTrailingZeros(playable));
+
+    // Plays a random card it can
+    BotStrategy RANDOM = (self, top, playable, hasDrawn, rnd) -> {
+        int pick = rnd.nextInt(Long.bitCount(playable));
+        long m = playable;
+        for (int i = 0; i < pick; i++) m &= m - 1; // Drop the lowest bit pick times
+        return Card.of(Long.numberOfTrailingZeros(m));
+    };
+
+    // Gets rid of the most points first and keeps its eights for when nothing else matches
+    BotStrategy GREEDY = (self, top, playable, hasDrawn, rnd) -> greedy(playable);
+
+    // GREEDY's pick among the playable cards (a non-empty bitset); it needs nothing else, e.g. for --hint
+    static Card greedy(long playable) {
+        Card best = null;
+        int bestScore = -1;
+        for (long m = playable; m != 0; m &= m - 1) {
+            Card c = Card.of(Long.numberOfTrailingZeros(m));
+            int s = c.getRank() == Card.Rank.EIGHT ? 0 : points(c);
+            if (s > bestScore) {
+                best = c;
+                bestScore = s;
+            }
+        }
+        return best;
+    }
+
+    // Draws rather than play an eight, as long as it has not drawn yet
+    BotStrategy SAVE_EIGHTS = (self, top, playable, hasDrawn, rnd) -> {
+        long rest = playable & ~Card.EIGHTS;
+        if (rest != 0) return Card.of(Long.numberOfTrailingZeros(rest));
+        return hasDrawn ? Card.of(Long.numberOfTrailingZeros(playable)) : null;
+    };
+
+    // Points a card counts in Player.score()
+    static int points(Card c) {
+        switch (c.getRank()) {
+            case J: case Q: case K: return 10;
+            default: return c.getRank().ordinal() + 1;
+        }
+    }
+
+    // Looks up a built-in bot by name
+    static BotStrategy of(String name) {
+        switch (name) {
+            case "first": return FIRST;
+            case "random": return RANDOM;
+            case "greedy": return GREEDY;
+            case "save-eights": return SAVE_EIGHTS;
+            case "mcts": return new MonteCarloBot(MonteCarloBot.DEFAULT_BUDGET_MS, 0);
+            default:
+                // mcts:<ms> searches for that long per move, mcts:<n>p runs n playouts per move
+                if (name.matches("mcts:[0-9]+p?"))
+                    return name.endsWith("p") ? new MonteCarloBot(0, Long.parseLong(name.substring(5, name.length() - 1)))
+                        : new MonteCarloBot(Long.parseLong(name.substring(5)), 0);
+                throw new IllegalArgumentException("Unknown bot: " + name + " (first, random, greedy, save-eights, mcts[:<ms>|:<n>p])");
+        }
+    }
+}
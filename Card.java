@@ -6,6 +6,8 @@ and calculate hash codes for use in collections.
 All the comments I wrote were put for me to keep track while developing, they are not AI generated. 
 */
 
+import java.util.*;
+
 public class Card {
     // Enum to represent the four suits of a card: Clubs, Diamonds, Hearts, Spades
     public enum Suit {C, D, H, S}
@@ -24,37 +26,111 @@ public class Card {
         @Override public String toString() { return code; }
     }
 
+    // Number of distinct cards; a card's ordinal is suit * 13 + rank, from 0 (AC) to 51 (KS)
+    public static final int COUNT = 52;
+    private static final int RANKS = 13;
+    private static final int EIGHT = 7; // Ordinal of Rank.EIGHT
+
+    private static final Card[] ALL = new Card[COUNT]; // The 52 canonical cards
+    private static final long[] MATCH = new long[COUNT]; // Cards that may be played on each card, as a bitset
+    public static final long EIGHTS; // The four eights as a bitset; they match anything
+    static {
+        Rank[] ranks = Rank.values();
+        Suit[] suits = Suit.values();
+        long eights = 0;
+        for (int s = 0; s < suits.length; s++) eights |= 1L << (s * RANKS + EIGHT);
+        EIGHTS = eights;
+        for (int o = 0; o < COUNT; o++) {
+            ALL[o] = new Card(ranks[o % RANKS], suits[o / RANKS], o);
+            long m = eights;
+            for (int x = 0; x < COUNT; x++)
+                if (x % RANKS == o % RANKS || x / RANKS == o / RANKS) m |= 1L << x;
+            MATCH[o] = m;
+        }
+    }
+
     private final Suit suit; // The suit of the card
     private final Rank rank; // The rank of the card
+    private final int ordinal; // Position in the canonical table
+    private final String code; // Cached string form, e.g. "10H"
 
-    // Constructor to create a card with a specific rank and suit
-    public Card(Rank rank, Suit suit) {
+    // Constructor to create a card with a specific rank and suit; only used to fill the canonical table
+    private Card(Rank rank, Suit suit, int ordinal) {
         this.rank = rank;
         this.suit = suit;
+        this.ordinal = ordinal;
+        this.code = rank.toString() + suit.name();
+    }
+
+    // Returns the canonical card with the given rank and suit
+    public static Card of(Rank rank, Suit suit) {
+        return ALL[suit.ordinal() * RANKS + rank.ordinal()];
+    }
+
+    // Returns the canonical card with the given ordinal
+    public static Card of(int ordinal) {
+        return ALL[ordinal];
+    }
+
+    // The cards of a bitset of ordinals, in card order (a new unmodifiable list)
+    public static List<Card> listOf(long mask) {
+        List<Card> out = new ArrayList<>(Long.bitCount(mask));
+        for (long m = mask; m != 0; m &= m - 1) out.add(ALL[Long.numberOfTrailingZeros(m)]);
+        return Collections.unmodifiableList(out);
+    }
+
+    // Ordinal of the card, 0 to 51
+    public int ordinal() { return ordinal; }
+
+    // Bitset of the cards that may be played on the card with the given ordinal (same rank, same suit, or an eight)
+    public static long matchMask(int top) {
+        return MATCH[top];
     }
 
     // Checks if this card matches another card based on rank, suit, or if it's an "Eight"
     public boolean matches(Card other) {
-        return this.rank == other.rank || this.suit == other.suit || this.rank == Rank.EIGHT;
+        return (MATCH[other.ordinal] >>> ordinal & 1) != 0;
     }
 
     // Converts the card to a string representation (e.g., "8H" for Eight of Hearts)
     @Override
     public String toString() {
-        return rank.toString() + suit.name();
+        return code;
     }
 
     // Static method to create a Card object from its string representation
     public static Card fromString(String s) {
-        if (s == null || s.length() < 2) throw new IllegalArgumentException("Invalid format");
-        String r = s.substring(0, s.length() - 1); // Extract the rank part
-        char sc = s.charAt(s.length() - 1); // Extract the suit character
-        Rank rank = null;
-        for (Rank x : Rank.values()) if (x.toString().equals(r)) rank = x; // Find the matching rank
-        Suit suit = null;
-        for (Suit x : Suit.values()) if (x.name().charAt(0) == sc) suit = x; // Find the matching suit
-        if (rank == null || suit == null) throw new IllegalArgumentException("Unknown card: " + s);
-        return new Card(rank, suit); // Create and return the card
+        return ALL[ordinalOf(s)]; // Table lookup, nothing is allocated
+    }
+
+    // Parses a card string such as "10H" straight to its ordinal
+    public static int ordinalOf(String s) {
+        if (s == null || s.length() < 2 || s.length() > 3) throw new IllegalArgumentException("Invalid format");
+        int suit;
+        switch (s.charAt(s.length() - 1)) { // The suit character
+            case 'C': suit = 0; break;
+            case 'D': suit = 1; break;
+            case 'H': suit = 2; break;
+            case 'S': suit = 3; break;
+            default: throw new IllegalArgumentException("Unknown card: " + s);
+        }
+        int rank = -1;
+        char r = s.charAt(0); // The rank part is one character, or "10"
+        if (s.length() == 3) {
+            if (r == '1' && s.charAt(1) == '0') rank = 9;
+        } else if (r >= '2' && r <= '9') {
+            rank = r - '1';
+        } else if (r == 'A') {
+            rank = 0;
+        } else if (r == 'J') {
+            rank = 10;
+        } else if (r == 'Q') {
+            rank = 11;
+        } else if (r == 'K') {
+            rank = 12;
+        }
+        if (rank < 0) throw new IllegalArgumentException("Unknown card: " + s);
+        return suit * RANKS + rank;
     }
 
     // Overrides equals to compare two cards based on their rank and suit
@@ -62,16 +138,18 @@ public class Card {
     public boolean equals(Object o) {
         if (this == o) return true; // Check if the objects are the same
         if (!(o instanceof Card)) return false; // Ensure the object is a Card
-        Card other = (Card) o;
-        return this.rank == other.rank && this.suit == other.suit; // Compare rank and suit
+        return this.ordinal == ((Card) o).ordinal; // Same rank and suit means same ordinal
     }
 
     // Overrides hashCode to generate a hash based on rank and suit
     @Override
     public int hashCode() {
-        return rank.hashCode() * 31 + suit.hashCode(); // Combine hash codes of rank and suit
+        return ordinal;
     }
 
     // Getter for the rank of the card
     public Rank getRank() { return rank; }
+
+    // Getter for the suit of the card
+    public Suit getSuit() { return suit; }
 }
@@ -6,6 +6,8 @@ It handles command-line arguments for initializing the game, adding/removing use
 
 All the comments I wrote were put for me to keep track while developing, they are not AI generated. 
 */
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
 
 public class CrazyEights {
@@ -14,24 +16,174 @@ public class CrazyEights {
             // Parse command-line arguments into a map of flags and their values
             Map<String, String> flags = parseArgs(args);
 
+            // Socket shared by the daemon and its clients
+            Path socket = flags.containsKey("socket") ? Paths.get(flags.get("socket")) : GameDaemon.defaultSocket();
+
+            // Dump per-command latency and I/O metrics to a file periodically and on exit
+            if (flags.containsKey("metrics"))
+                Metrics.dumpEvery(Paths.get(flags.get("metrics")), Long.parseLong(flags.getOrDefault("metrics-every", "10")));
+
+            // When moves are forced to disk: each on its own (sync), in shared group commits, or every --flush-ms
+            if (flags.containsKey("durability"))
+                WriteBehind.configure(WriteBehind.parse(flags.get("durability")),
+                    Long.parseLong(flags.getOrDefault("flush-ms", Long.toString(WriteBehind.DEFAULT_FLUSH_MS))));
+
+            // Run as a daemon that keeps games warm in memory if the "--daemon" flag is provided
+            if (flags.containsKey("daemon")) {
+                Metrics.registerMBeans(); // Long-lived, so worth watching over JMX
+                new GameDaemon(socket).serve();
+                return;
+            }
+
+            // Serve the games in a directory to remote players over TCP if the "--serve" flag is provided
+            if (flags.containsKey("serve")) {
+                Metrics.registerMBeans();
+                new GameServer(Integer.parseInt(flags.get("serve")), Paths.get(flags.getOrDefault("games", "."))).serve();
+                return;
+            }
+
+            // Load-test a game server on this machine with bot players and idle watchers
+            if (flags.containsKey("load")) {
+                LoadClient.run(flags.get("load"), Paths.get(flags.getOrDefault("games", ".")),
+                    Integer.parseInt(flags.getOrDefault("tables", "100")),
+                    Integer.parseInt(flags.getOrDefault("players", "2")),
+                    Integer.parseInt(flags.getOrDefault("connections", "10000")),
+                    Long.parseLong(flags.getOrDefault("seconds", "30")));
+                return;
+            }
+
+            // Play bot games in memory and report the statistics if the "--simulate" flag is provided
+            if (flags.containsKey("simulate")) {
+                Simulator.simulate(Long.parseLong(flags.get("simulate")),
+                    Integer.parseInt(flags.getOrDefault("players", "2")),
+                    Integer.parseInt(flags.getOrDefault("decks", "1")),
+                    flags.getOrDefault("bots", "first"),
+                    flags.containsKey("seed") ? Long.parseLong(flags.get("seed")) : new SplittableRandom().nextLong());
+                return;
+            }
+
+            // Seat a pool of players at tables and play a Swiss or knockout tournament
+            if (flags.containsKey("tournament")) {
+                Tournament.run(Paths.get(flags.get("tournament")), Paths.get(flags.getOrDefault("games", ".")),
+                    Integer.parseInt(flags.getOrDefault("table-size", "4")),
+                    flags.getOrDefault("pairing", "swiss"),
+                    Integer.parseInt(flags.getOrDefault("rounds", "0")),
+                    Integer.parseInt(flags.getOrDefault("deals", "1")),
+                    Integer.parseInt(flags.getOrDefault("threads", Integer.toString(Runtime.getRuntime().availableProcessors()))),
+                    flags.containsKey("seed") ? Long.parseLong(flags.get("seed")) : new SplittableRandom().nextLong(),
+                    flags.containsKey("ttl") ? Long.parseLong(flags.get("ttl")) : SessionTokens.DEFAULT_TTL_MINUTES,
+                    flags.containsKey("move-timeout") ? Long.parseLong(flags.get("move-timeout")) : Tournament.DEFAULT_MOVE_TIMEOUT_SECONDS);
+                WriteBehind.drain();
+                return;
+            }
+
+            // List the archived games, or replay one of them move by move
+            if (flags.containsKey("history") || flags.containsKey("replay")) {
+                Path archive = Paths.get(flags.getOrDefault("archive", GameArchive.DIR));
+                if (flags.containsKey("replay")) GameArchive.replay(archive, Integer.parseInt(flags.get("replay")), System.out);
+                else GameArchive.list(archive, System.out);
+                return;
+            }
+
+            // Rank the players of the archived games, or show one of them with --stats
+            if (flags.containsKey("leaderboard") || flags.containsKey("stats")) {
+                Path archive = Paths.get(flags.getOrDefault("archive", GameArchive.DIR));
+                Leaderboard lb = flags.containsKey("rescan") ? Leaderboard.rescan(archive) : Leaderboard.load(archive);
+                if (flags.containsKey("stats")) lb.print(flags.get("stats"), System.out);
+                else lb.print(Integer.parseInt(flags.getOrDefault("top", "10")), System.out);
+                return;
+            }
+
+            // Play a training game through the CLI commands, for the AppCDS archive the build creates
+            if (flags.containsKey("train")) {
+                train(Paths.get(flags.get("train")));
+                return;
+            }
+
             // Initialize the game directory if the "--init" flag is provided
             if (flags.containsKey("init")) {
-                GameManager.init(flags.get("game"));
+                String game = flags.get("game");
+                if (flags.containsKey("slot-kb")) { // Slot size of a store file created for this game
+                    if (game.indexOf('#') < 0) throw new IllegalArgumentException("--slot-kb needs --game <store file>#<name>");
+                    SlotGameStore.createFile(Paths.get(game.substring(0, game.lastIndexOf('#'))), Integer.parseInt(flags.get("slot-kb")));
+                }
+                GameManager.init(game, "binary".equals(flags.get("format")));
                 return;
             }
 
+            // Log in once and save the session token for the following commands
+            if (flags.containsKey("login")) {
+                String user = flags.getOrDefault("user", "admin");
+                long ttl = flags.containsKey("ttl") ? Long.parseLong(flags.get("ttl")) : SessionTokens.DEFAULT_TTL_MINUTES;
+                String token = new GameManager(flags.get("game")).login(user, ttl);
+                SessionTokens.save(SessionTokens.savedToken(flags.get("game"), user), token);
+                System.out.println(token);
+                return;
+            }
+
+            // Session token from --token, else the one saved by --login; without one the password is asked
+            String as = flags.getOrDefault("user", "admin");
+            String token = flags.containsKey("token") ? flags.get("token")
+                : SessionTokens.load(SessionTokens.savedToken(flags.get("game"), as));
+
+            // Game commands go to a running daemon if there is one
+            for (String cmd: new String[]{"order", "play", "cards", "draw", "pass", "wait-turn", "spectate", "hint", "moves"}) {
+                String arg = cmd.equals("wait-turn") ? flags.get("timeout") : flags.get(cmd);
+                String user = cmd.equals("spectate") ? as : flags.get("user"); // Anyone may watch, admin included
+                if (flags.containsKey(cmd)
+                        && new DaemonClient(socket).run(flags.get("game"), cmd, arg, user, token))
+                    return;
+            }
+
             // Create a GameManager instance for the specified game directory
             GameManager gm = new GameManager(flags.get("game"));
+            gm.useToken(token);
 
             // Handle different command-line flags and execute corresponding actions
             if (flags.containsKey("add-user")) {
                 gm.addUser(flags.get("add-user")); // Add a new user
             } else if (flags.containsKey("remove-user")) {
                 gm.removeUser(flags.get("remove-user")); // Remove an existing user
+            } else if (flags.containsKey("import-users") || flags.containsKey("remove-users")) {
+                // Bulk user changes from a file (or - for stdin), validated first and written once
+                String src = flags.getOrDefault("import-users", flags.get("remove-users"));
+                try (BufferedReader in = src.equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+                        : Files.newBufferedReader(Paths.get(src))) {
+                    if (flags.containsKey("import-users")) gm.importUsers(in);
+                    else gm.removeUsers(in);
+                }
+            } else if (flags.containsKey("export-users")) {
+                // Every player with their password hash, as a CSV --import-users takes
+                String dst = flags.get("export-users");
+                if (!dst.equals("-")) {
+                    try (PrintStream file = new PrintStream(Files.newOutputStream(Paths.get(dst)), false, "UTF-8")) {
+                        gm.useOutput(file);
+                        gm.exportUsers();
+                    }
+                } else gm.exportUsers();
+            } else if (flags.containsKey("batch")) {
+                // Applies a script of commands (a file, or - for stdin) with one load and one save per checkpoint
+                String src = flags.get("batch");
+                try (BufferedReader in = src.equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+                        : Files.newBufferedReader(Paths.get(src))) {
+                    gm.batch(in, as);
+                }
+            } else if (flags.containsKey("revoke")) {
+                gm.revoke(flags.get("revoke")); // Invalidate the session tokens of a user
+            } else if (flags.containsKey("convert")) {
+                gm.convert(flags.get("convert")); // Switch between the text and binary formats
             } else if (flags.containsKey("start")) {
-                gm.start(); // Start the game
+                gm.start(flags.containsKey("seed") ? Long.valueOf(flags.get("seed")) : null, // Start the game
+                    flags.containsKey("decks") ? Integer.valueOf(flags.get("decks")) : null);
             } else if (flags.containsKey("order")) {
                 gm.order(flags.get("user")); // Display the turn order for a user
+            } else if (flags.containsKey("moves") || flags.containsKey("hint")) {
+                gm.moves(flags.get("user"), flags.containsKey("hint")); // Playable cards, and a suggestion with --hint
+            } else if (flags.containsKey("spectate")) {
+                gm.spectate(as); // Hand sizes, top discard and turn, without anyone's cards
+            } else if (flags.containsKey("wait-turn")) {
+                // Blocks until it is the user's turn or the game is over
+                gm.waitTurn(flags.get("user"), Long.parseLong(flags.getOrDefault("timeout", "0")));
             } else if (flags.containsKey("play")) {
                 gm.play(flags.get("play"), flags.get("user")); // Play a card
             } else if (flags.containsKey("cards")) {
@@ -46,6 +198,8 @@ public class CrazyEights {
                 // Throw an exception if an invalid command is provided
                 throw new IllegalArgumentException("Invalid command");
             }
+            GameJournal.awaitCompactions(); // Let a background compaction finish before the JVM exits
+            WriteBehind.drain(); // And force the moves written behind
         } catch (Exception e) {
             // Print the error message and exit with a non-zero status code
             System.err.println("ERROR: " + e.getMessage());
@@ -53,6 +207,63 @@ public class CrazyEights {
         }
     }
 
+    // Plays a two-player game in dir through main(), the way a user runs the commands with session tokens,
+    // so that -XX:ArchiveClassesAtExit records the classes --cards, --order, --hint, --play, --draw and --pass load.
+    // Setting the game up needs passwords, which are given here instead of read from the console.
+    private static void train(Path dir) throws IOException {
+        Path gameDir = dir.resolve("training");
+        if (Files.exists(dir)) // Left over from an earlier build
+            try (java.util.stream.Stream<Path> s = Files.walk(dir)) {
+                s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        Files.createDirectories(dir);
+        String game = gameDir.toString();
+        AuthManager.Prompt pw = p -> "training";
+        GameManager.init(game, false, pw);
+        GameManager gm = new GameManager(game);
+        gm.usePrompt(pw);
+        ByteArrayOutputStream hint = new ByteArrayOutputStream();
+        gm.useOutput(new PrintStream(hint, true));
+        String[] users = {"Alice", "Bob"};
+        Map<String, String> tokens = new HashMap<>();
+        for (String u: users) gm.addUser(u);
+        gm.start(7L, null); // A short game with a draw, a pass and a win
+        for (String u: users) tokens.put(u, gm.login(u, 10));
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Only the loaded classes matter
+        int commands = 0;
+        try {
+            for (boolean over = false; !over; ) {
+                for (String u: users) {
+                    hint.reset();
+                    gm.moves(u, true);
+                    String h = hint.toString().trim();
+                    h = h.substring(h.indexOf("Hint: ") + 6);
+                    if (h.startsWith("wait")) continue;
+                    over = h.startsWith("the game is over");
+                    String[] as = {"--user", u, "--token", tokens.get(u), "--game", game};
+                    List<String[]> cmds = new ArrayList<>();
+                    cmds.add(new String[]{"--cards", u});
+                    cmds.add(new String[]{"--order"});
+                    cmds.add(new String[]{"--hint"});
+                    if (h.startsWith("play ")) cmds.add(new String[]{"--play", h.substring(5)});
+                    else if (h.equals("draw")) cmds.add(new String[]{"--draw"});
+                    else if (h.equals("pass")) cmds.add(new String[]{"--pass"});
+                    for (String[] c: cmds) {
+                        String[] args = Arrays.copyOf(c, c.length + as.length);
+                        System.arraycopy(as, 0, args, c.length, as.length);
+                        main(args); // Exits the JVM on an error, which fails the build
+                        commands++;
+                    }
+                }
+            }
+        } finally {
+            System.setOut(stdout);
+        }
+        System.out.println("Trained on " + commands + " commands in " + game);
+    }
+
     // Parses command-line arguments into a map of flags and their values
     private static Map<String, String> parseArgs(String[] args) {
         Map<String, String> m = new HashMap<>();
@@ -67,12 +278,42 @@ public class CrazyEights {
                 case "--remove-user": 
                     m.put("remove-user", args[++i]); // Remove an existing user
                     break;
+                case "--import-users": 
+                    m.put("import-users", args[++i]); // CSV of users to add at once, or - for stdin
+                    break;
+                case "--export-users": 
+                    m.put("export-users", args[++i]); // File to write the users to as an import CSV, or - for stdout
+                    break;
+                case "--remove-users": 
+                    m.put("remove-users", args[++i]); // Users to remove at once, one per line, or - for stdin
+                    break;
                 case "--start": 
                     m.put("start", ""); // Start the game
                     break;
+                case "--seed": 
+                    m.put("seed", args[++i]); // Deck seed for --start, to replay a deal
+                    break;
+                case "--decks": 
+                    m.put("decks", args[++i]); // Decks in the shoe for --start or --simulate
+                    break;
                 case "--order": 
                     m.put("order", ""); // Display the turn order
                     break;
+                case "--moves": 
+                    m.put("moves", ""); // List the cards the user can play
+                    break;
+                case "--hint": 
+                    m.put("hint", ""); // List them and suggest a move
+                    break;
+                case "--spectate": 
+                    m.put("spectate", ""); // Show the table without anyone's cards
+                    break;
+                case "--wait-turn": 
+                    m.put("wait-turn", ""); // Wait until it is the user's turn
+                    break;
+                case "--timeout": 
+                    m.put("timeout", args[++i]); // Seconds --wait-turn waits at most (0: no limit)
+                    break;
                 case "--play": 
                     m.put("play", args[++i]); // Play a card
                     break;
@@ -89,7 +330,121 @@ public class CrazyEights {
                     m.put("user", args[++i]); // Specify the user
                     break;
                 case "--game": 
-                    m.put("game", args[++i]); // Specify the game directory
+                    m.put("game", args[++i]); // Specify the game directory, or <store file>#<name>
+                    break;
+                case "--format": 
+                    m.put("format", args[++i]); // Storage format for --init: text or binary
+                    break;
+                case "--slot-kb": 
+                    m.put("slot-kb", args[++i]); // Slot size of a store file --init creates
+                    break;
+                case "--convert": 
+                    m.put("convert", args[++i]); // Convert the game to text or binary
+                    break;
+                case "--login": 
+                    m.put("login", ""); // Check the password once and save a session token
+                    break;
+                case "--token": 
+                    m.put("token", args[++i]); // Session token to use instead of a password
+                    break;
+                case "--ttl": 
+                    m.put("ttl", args[++i]); // Lifetime of the --login token in minutes
+                    break;
+                case "--revoke": 
+                    m.put("revoke", args[++i]); // Invalidate the session tokens of a user
+                    break;
+                case "--simulate": 
+                    m.put("simulate", args[++i]); // Number of bot games to simulate
+                    break;
+                case "--players": 
+                    m.put("players", args[++i]); // Seats in a simulated game
+                    break;
+                case "--bots": 
+                    m.put("bots", args[++i]); // Bot of each seat, comma separated
+                    break;
+                case "--metrics": 
+                    m.put("metrics", args[++i]); // File to dump the command metrics to
+                    break;
+                case "--metrics-every": 
+                    m.put("metrics-every", args[++i]); // Seconds between metrics dumps
+                    break;
+                case "--batch": 
+                    m.put("batch", args[++i]); // Script of commands to apply in one pass, or - for stdin
+                    break;
+                case "--tournament": 
+                    m.put("tournament", args[++i]); // Pool file of a tournament to play
+                    break;
+                case "--table-size": 
+                    m.put("table-size", args[++i]); // Most seats at a tournament table
+                    break;
+                case "--pairing": 
+                    m.put("pairing", args[++i]); // Tournament rounds: swiss or knockout
+                    break;
+                case "--rounds": 
+                    m.put("rounds", args[++i]); // Swiss rounds (default: log2 of the pool)
+                    break;
+                case "--deals": 
+                    m.put("deals", args[++i]); // Games each tournament table plays per round
+                    break;
+                case "--threads": 
+                    m.put("threads", args[++i]); // Threads playing the tournament's bot tables
+                    break;
+                case "--move-timeout": 
+                    m.put("move-timeout", args[++i]); // Seconds a live tournament table waits for a human's move (0: no limit)
+                    break;
+                case "--history": 
+                    m.put("history", ""); // List the finished games in the archive
+                    break;
+                case "--replay": 
+                    m.put("replay", args[++i]); // Replay an archived game by its number
+                    break;
+                case "--leaderboard": 
+                    m.put("leaderboard", ""); // Rank the players of the archived games
+                    break;
+                case "--top": 
+                    m.put("top", args[++i]); // Players listed by --leaderboard
+                    break;
+                case "--stats": 
+                    m.put("stats", args[++i]); // Archived game totals of one player
+                    break;
+                case "--rescan": 
+                    m.put("rescan", ""); // Count every archived game again for --leaderboard or --stats
+                    break;
+                case "--archive": 
+                    m.put("archive", args[++i]); // Archive directory for --history, --replay and --leaderboard
+                    break;
+                case "--train": 
+                    m.put("train", args[++i]); // Directory to play the startup training game in
+                    break;
+                case "--daemon": 
+                    m.put("daemon", ""); // Run the resident game daemon
+                    break;
+                case "--socket": 
+                    m.put("socket", args[++i]); // Socket of the daemon
+                    break;
+                case "--serve": 
+                    m.put("serve", args[++i]); // TCP port to serve the games to remote players on
+                    break;
+                case "--durability": 
+                    m.put("durability", args[++i]); // When moves reach the disk: sync, group or periodic
+                    break;
+                case "--flush-ms": 
+                    m.put("flush-ms", args[++i]); // Flush window of --durability periodic
+                    break;
+                case "--games": 
+                    m.put("games", args[++i]); // Directory or store file of the games --serve and --load use
+                    break;
+                case "--load": 
+                    m.put("load", args[++i]); // Game server to load-test, as <host>:<port>
+                    break;
+                case "--tables": 
+                    m.put("tables", args[++i]); // Games --load plays at once
+                    break;
+                case "--connections": 
+                    m.put("connections", args[++i]); // Connections --load opens, players included
+                    break;
+                case "--seconds": 
+                    m.put("seconds", args[++i]); // How long --load plays
                     break;
                 default:
                     // Throw an exception for unknown flags
@@ -98,7 +453,11 @@ public class CrazyEights {
         }
 
         // Ensure the "--game" flag is provided
-        if (!m.containsKey("game")) throw new IllegalArgumentException("Missing --game <name>");
+        if (!m.containsKey("game") && !m.containsKey("daemon") && !m.containsKey("simulate")
+                && !m.containsKey("history") && !m.containsKey("replay")
+                && !m.containsKey("leaderboard") && !m.containsKey("stats") && !m.containsKey("train")
+                && !m.containsKey("serve") && !m.containsKey("load")
+                && !m.containsKey("tournament")) throw new IllegalArgumentException("Missing --game <name>");
         return m;
     }
 }
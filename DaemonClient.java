@@ -0,0 +1,46 @@
+/*
+Purpose: This class is the thin CLI side of the daemon.
+It forwards a game command to a running GameDaemon over its Unix-domain socket and prints the reply.
+When no daemon is listening it reports that, so the CLI can fall back to running the command itself.
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+public class DaemonClient {
+    private final Path socketPath; // Socket file of the daemon
+
+    public DaemonClient(Path socketPath) {
+        this.socketPath = socketPath;
+    }
+
+    // Sends the command to the daemon; returns false if no daemon is running
+    public boolean run(String game, String command, String arg, String user, String token) throws IOException {
+        if (!Files.exists(socketPath)) return false;
+        SocketChannel ch;
+        try {
+            ch = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException e) {
+            return false; // Stale socket file, nobody is listening
+        }
+        try (ch;
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)))) {
+            String pwd = token != null ? "" : AuthManager.consolePrompt(System.console()).read("Password for " + user + ": ");
+            out.writeUTF(Paths.get(game).toAbsolutePath().normalize().toString()); // The daemon may run from another directory
+            out.writeUTF(command);
+            out.writeUTF(arg == null ? "" : arg);
+            out.writeUTF(user == null ? "" : user);
+            out.writeUTF(pwd);
+            out.writeUTF(token == null ? "" : token); // Empty: check the password instead
+            out.flush();
+            int status = in.readInt();
+            String reply = in.readUTF();
+            if (status != 0) throw new IllegalStateException(reply);
+            System.out.print(reply);
+            return true;
+        }
+    }
+}
@@ -8,88 +8,311 @@ It also handles reshuffling the discard pile into the draw pile when needed.
 All the comments I wrote were put for me to keep track while developing, they are not AI generated. 
 */
 import java.util.*;
-import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
 import java.io.*;
 
 public class Deck {
-    // Deque to represent the draw pile of cards
-    private final Deque<Card> drawPile = new ArrayDeque<>();
-    // Deque to represent the discard pile of cards
-    private final Deque<Card> discardPile = new ArrayDeque<>();
+    private static final long GAMMA = 0x9E3779B97F4A7C15L; // SplitMix64 increment, as in SplittableRandom
+    public static final int MAX_DECKS = 100; // Largest shoe
 
-    // Constructor to initialize the deck with all cards shuffled
+    // Draw pile as card ordinals: draw[drawHead] is the top, draw[drawTail - 1] the bottom.
+    // Both piles start at one deck's worth and grow when a multi-deck shoe needs more room.
+    private int[] draw = new int[Card.COUNT];
+    private int drawHead = 0;
+    private int drawTail = 0;
+    // Discard pile as card ordinals: discard[discardSize - 1] is the top
+    private int[] discard = new int[Card.COUNT];
+    private int discardSize = 0;
+    private int decks = 1; // Decks shuffled together when the game was dealt
+    private long seed; // Seed of the game; the deal and every reshuffle follow from it
+    private int shuffles = 0; // Reshuffles done so far
+    // Pile files of a loaded deck that have not been read yet: each is read the first time it is needed
+    private static final int DRAW = 1, DISCARD = 2, SEED = 4;
+    private final GameStore store; // Store the deck was loaded from, or null
+    private int unread = 0;
+
+    // Constructor to initialize the deck with all cards shuffled from a fresh seed
     public Deck() {
-        List<Card> all = new ArrayList<>();
-        // Add all cards (each combination of rank and suit) to the list
-        for (Card.Suit s : Card.Suit.values())
-            for (Card.Rank r : Card.Rank.values())
-                all.add(new Card(r, s));
-        Collections.shuffle(all); // Shuffle the cards
-        for (Card c: all) drawPile.add(c); // Add shuffled cards to the draw pile
+        this(new SplittableRandom().nextLong());
+    }
+
+    // Constructor to initialize the deck with all cards shuffled from the given seed; same seed, same game
+    public Deck(long seed) {
+        this(seed, 1);
+    }
+
+    // Constructor for a shoe of several decks shuffled together from the given seed
+    public Deck(long seed, int decks) {
+        if (decks < 1 || decks > MAX_DECKS) throw new IllegalArgumentException("Decks must be 1 to " + MAX_DECKS);
+        this.seed = seed;
+        this.store = null;
+        this.decks = decks;
+        int n = Card.COUNT * decks;
+        draw = new int[n];
+        discard = new int[n];
+        for (int i = 0; i < n; i++) draw[i] = i % Card.COUNT; // Add all cards to the draw pile
+        drawTail = n;
+        shuffle(draw, 0, drawTail, seed); // Shuffle the cards
+    }
+
+    // Constructor for a deck whose piles are filled in by the caller, so nothing is shuffled for nothing
+    private Deck(long seed, int shuffles, int drawRoom, int discardRoom) {
+        this.seed = seed;
+        this.shuffles = shuffles;
+        this.store = null;
+        draw = new int[Math.max(Card.COUNT, drawRoom)];
+        discard = new int[Math.max(Card.COUNT, discardRoom)];
+    }
+
+    // Constructor for a deck whose pile files in the store are read on first use
+    private Deck(GameStore store) {
+        this.store = store;
+        this.unread = DRAW | DISCARD | SEED;
+    }
+
+    // Seed the deck was built from
+    public long getSeed() {
+        need(SEED);
+        return seed;
+    }
+
+    // Decks the shoe was shuffled from; 1 for a deck loaded from its piles, which only holds the cards
+    public int getDecks() { return decks; }
+
+    // Number of reshuffles so far
+    public int getShuffles() {
+        need(SEED);
+        return shuffles;
     }
 
     // Deals a specified number of cards from the draw pile
     public List<Card> deal(int n) {
-        if (drawPile.size() < n) reshuffleDiscardIntoDraw(); // Reshuffle if not enough cards
+        need(DRAW);
+        if (drawTail - drawHead < n) reshuffleDiscardIntoDraw(); // Reshuffle if not enough cards
         List<Card> hand = new ArrayList<>();
-        for (int i = 0; i < n; i++) hand.add(drawPile.poll()); // Remove cards from the draw pile
+        for (int i = 0; i < n; i++) hand.add(Card.of(draw[drawHead++])); // Remove cards from the draw pile
         return hand;
     }
 
     // Starts the game by moving the top card from the draw pile to the discard pile
     public void start() {
-        discardPile.add(drawPile.poll());
+        need(DRAW | DISCARD);
+        discard[discardSize++] = draw[drawHead++];
     }
 
     // Returns the top card of the discard pile without removing it
     public Card topDiscard() {
-        return discardPile.peekLast();
+        if ((unread & DISCARD) != 0 && discardSize == 0) return readTopDiscard(); // Only the last line of the file is needed
+        return discardSize == 0 ? null : Card.of(discard[discardSize - 1]);
     }
 
-    // Plays a card by adding it to the discard pile
+    // Plays a card by adding it to the discard pile; an unread discard pile is read in below it later
     public void play(Card c) {
-        discardPile.add(c);
+        if (discardSize == discard.length) discard = Arrays.copyOf(discard, discardSize * 2);
+        discard[discardSize++] = c.ordinal();
     }
 
     // Draws a card from the draw pile, reshuffling if necessary
     public Card draw() {
-        if (drawPile.isEmpty()) reshuffleDiscardIntoDraw(); // Reshuffle if draw pile is empty
-        return drawPile.poll(); // Remove and return the top card from the draw pile
+        need(DRAW);
+        if (drawHead == drawTail) reshuffleDiscardIntoDraw(); // Reshuffle if draw pile is empty
+        return Card.of(draw[drawHead++]); // Remove and return the top card from the draw pile
+    }
+
+    // Replays a journaled draw of the given card; an unread draw pile is checked against the journal when read
+    public void replayDraw(Card c) {
+        if ((unread & DRAW) != 0) {
+            if (drawHead == draw.length) draw = Arrays.copyOf(draw, drawHead * 2);
+            draw[drawHead++] = c.ordinal();
+            return;
+        }
+        if (draw() != c) throw new IllegalStateException("Journal does not match the draw pile");
+    }
+
+    // Number of cards left in the draw pile
+    public int drawCount() {
+        need(DRAW);
+        return drawTail - drawHead;
+    }
+
+    // Number of cards in the discard pile
+    public int discardCount() {
+        need(DISCARD);
+        return discardSize;
+    }
+
+    // True when the next draw has to reshuffle the discard pile first
+    public boolean needsReshuffle() {
+        need(DRAW);
+        return drawHead == drawTail;
+    }
+
+    // Seed the next reshuffle will use; derived from the game seed so a whole game replays from one number
+    public long nextShuffleSeed() {
+        need(SEED);
+        return mix64(mix64(seed) + GAMMA * (shuffles + 1)); // A different stream than the deal
+    }
+
+    // Reshuffles the discard pile into the draw pile with a given seed, so a journal replay gets the same order
+    public void reshuffle(long shuffleSeed) {
+        need(DRAW | DISCARD | SEED);
+        if (discardSize <= 1) throw new IllegalStateException("No cards to reshuffle"); // Ensure enough cards
+        int left = drawTail - drawHead;
+        System.arraycopy(draw, drawHead, draw, 0, left); // Move what is left of the draw pile to the front
+        drawHead = 0;
+        int rest = discardSize - 1; // Everything but the top discard card
+        if (left + rest > draw.length) draw = Arrays.copyOf(draw, left + rest);
+        System.arraycopy(discard, 0, draw, left, rest);
+        drawTail = left + rest;
+        shuffle(draw, left, drawTail, shuffleSeed); // Shuffle only the cards added below the draw pile
+        discard[0] = discard[discardSize - 1]; // Keep the top card of the discard pile
+        discardSize = 1;
+        shuffles++;
     }
 
     // Reshuffles the discard pile into the draw pile, leaving the top discard card
     private void reshuffleDiscardIntoDraw() {
-        if (discardPile.size() <= 1) throw new IllegalStateException("No cards to reshuffle"); // Ensure enough cards
-        Card top = discardPile.pollLast(); // Keep the top card of the discard pile
-        List<Card> rest = new ArrayList<>(discardPile); // Collect the rest of the discard pile
-        discardPile.clear(); // Clear the discard pile
-        Collections.shuffle(rest); // Shuffle the cards
-        drawPile.addAll(rest); // Add shuffled cards to the draw pile
-        discardPile.add(top); // Add the top card back to the discard pile
+        reshuffle(nextShuffleSeed());
+    }
+
+    // In-place Fisher-Yates over a[from..to), driven by SplitMix64 (the generator behind SplittableRandom)
+    private static void shuffle(int[] a, int from, int to, long seed) {
+        long state = seed;
+        for (int i = to - 1; i > from; i--) {
+            state += GAMMA;
+            int j = from + (int) Long.remainderUnsigned(mix64(state), i - from + 1);
+            int t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    // SplitMix64 output function
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 
     // Saves the current state of the draw and discard piles to files
-    public void savePiles(Path dir) throws IOException {
-        writePile(drawPile, dir.resolve("draw.txt")); // Save the draw pile to "draw.txt"
-        writePile(discardPile, dir.resolve("discard.txt")); // Save the discard pile to "discard.txt"
+    public void savePiles(GameStore store) throws IOException {
+        for (Map.Entry<String, List<String>> e: pileFiles().entrySet())
+            store.write(e.getKey(), e.getValue()); // Write "draw.txt", "discard.txt" and "seed.txt"
     }
 
-    // Helper method to write a pile of cards to a file
-    private void writePile(Collection<Card> pile, Path f) throws IOException {
+    // Returns the contents of "draw.txt", "discard.txt" and "seed.txt" without writing them
+    public Map<String, List<String>> pileFiles() {
+        need(DRAW | DISCARD | SEED);
+        Map<String, List<String>> files = new LinkedHashMap<>();
+        files.put("draw.txt", lines(draw, drawHead, drawTail));
+        files.put("discard.txt", lines(discard, 0, discardSize));
+        files.put("seed.txt", Collections.singletonList(seed + "," + shuffles));
+        return files;
+    }
+
+    // Helper method to turn a pile of cards into file lines
+    private static List<String> lines(int[] pile, int from, int to) {
         List<String> lines = new ArrayList<>();
-        for (Card c: pile) lines.add(c.toString()); // Convert each card to a string
-        Files.write(f, lines); // Write the strings to the file
-    }
-
-    // Loads a deck from files representing the draw and discard piles
-    public static Deck load(Path dir) throws IOException {
-        Deck d = new Deck();
-        d.drawPile.clear(); // Clear the draw pile
-        d.discardPile.clear(); // Clear the discard pile
-        for (String line: Files.readAllLines(dir.resolve("draw.txt")))
-            d.drawPile.add(Card.fromString(line)); // Load cards into the draw pile
-        for (String line: Files.readAllLines(dir.resolve("discard.txt")))
-            d.discardPile.add(Card.fromString(line)); // Load cards into the discard pile
-        return d; // Return the loaded deck
+        for (int i = from; i < to; i++) lines.add(Card.of(pile[i]).toString()); // Convert each card to a string
+        return lines;
+    }
+
+    // Copy of the draw pile, top first
+    public List<Card> getDrawPile() {
+        need(DRAW);
+        return cards(draw, drawHead, drawTail);
+    }
+
+    // Copy of the discard pile, top last
+    public List<Card> getDiscardPile() {
+        need(DISCARD);
+        return cards(discard, 0, discardSize);
+    }
+
+    // Copies of each card ordinal in the discard pile, for a bot that counts cards
+    public int[] discardCounts() {
+        need(DISCARD);
+        int[] counts = new int[Card.COUNT];
+        for (int i = 0; i < discardSize; i++) counts[discard[i]]++;
+        return counts;
+    }
+
+    private static List<Card> cards(int[] pile, int from, int to) {
+        List<Card> out = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) out.add(Card.of(pile[i]));
+        return Collections.unmodifiableList(out);
+    }
+
+    // Builds a deck from piles read elsewhere, e.g. from the binary game file
+    public static Deck fromPiles(Collection<Card> draw, Collection<Card> discard, long seed, int shuffles) {
+        Deck d = new Deck(seed, shuffles, draw.size(), discard.size());
+        for (Card c: draw) d.draw[d.drawTail++] = c.ordinal();
+        for (Card c: discard) d.discard[d.discardSize++] = c.ordinal();
+        return d;
+    }
+
+    // Loads a deck from the files representing the draw and discard piles.
+    // Nothing is read yet: each file is read when a command first needs it.
+    public static Deck load(GameStore store) {
+        return new Deck(store);
+    }
+
+    // Reads every pile file that has not been read yet
+    public void readAll() throws IOException {
+        read(unread);
+    }
+
+    // Reads the given pile files if they have not been read yet
+    private void need(int parts) {
+        if ((unread & parts) == 0) return;
+        try {
+            read(unread & parts);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void read(int parts) throws IOException {
+        if ((parts & SEED) != 0) {
+            if (store.exists("seed.txt")) { // Games started before seeds were kept have no seed file
+                String[] p = store.readLines("seed.txt").get(0).split(",");
+                seed = Long.parseLong(p[0].trim());
+                shuffles = Integer.parseInt(p[1].trim());
+            } else {
+                seed = new SplittableRandom().nextLong();
+            }
+        }
+        if ((parts & DRAW) != 0) {
+            List<String> lines = store.readLines("draw.txt");
+            if (lines.size() > draw.length) draw = Arrays.copyOf(draw, lines.size());
+            for (String line: lines) {
+                int o = Card.ordinalOf(line);
+                if (drawTail < drawHead && draw[drawTail] != o) // Drawn in a replay before the file was read
+                    throw new IllegalStateException("Journal does not match the draw pile");
+                draw[drawTail++] = o; // Load cards into the draw pile
+            }
+            if (drawTail < drawHead) throw new IllegalStateException("Journal does not match the draw pile");
+        }
+        if ((parts & DISCARD) != 0) {
+            List<String> lines = store.readLines("discard.txt");
+            if (lines.size() + discardSize > discard.length) discard = Arrays.copyOf(discard, lines.size() + discardSize);
+            System.arraycopy(discard, 0, discard, lines.size(), discardSize); // Cards played before the file was read
+            for (int i = 0; i < lines.size(); i++)
+                discard[i] = Card.ordinalOf(lines.get(i)); // Load cards into the discard pile
+            discardSize += lines.size();
+        }
+        unread &= ~parts;
+    }
+
+    // Top of the discard pile from the last line of discard.txt, without reading the rest of the file
+    private Card readTopDiscard() {
+        try {
+            byte[] end = store.tail("discard.txt", 16); // Longer than any card line
+            String tail = new String(end, StandardCharsets.US_ASCII).trim();
+            if (tail.isEmpty()) return null;
+            return Card.fromString(tail.substring(tail.lastIndexOf('\n') + 1).trim());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
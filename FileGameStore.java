@@ -0,0 +1,184 @@
+/*
+Purpose: This class is the classic game store: one directory per game with a plain file for each name,
+counted in Metrics. replace() writes the new files next to the old ones as "<file>.new" and commits them
+with replace.pending, which names them, so recovery finishes the renames after a crash.
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class FileGameStore implements GameStore {
+    private static final String PENDING = "replace.pending"; // Names the .new files of a committed replace()
+    private static final String SECRET = "session.key"; // Readable by the owner only
+
+    private final Path dir; // Game directory
+
+    public FileGameStore(Path dir) {
+        this.dir = dir;
+    }
+
+    // Creates an empty game directory
+    public static FileGameStore create(Path dir) throws IOException {
+        if (Files.exists(dir)) throw new IllegalArgumentException("Game already exists");
+        Files.createDirectory(dir);
+        return new FileGameStore(dir);
+    }
+
+    @Override public String name() { return dir.getFileName().toString(); }
+    @Override public Path id() { return dir.toAbsolutePath().normalize(); }
+    @Override public Path directory() { return dir; }
+    @Override public String toString() { return dir.toString(); }
+
+    @Override public boolean exists(String file) {
+        return Files.exists(dir.resolve(file));
+    }
+
+    @Override public byte[] read(String file) throws IOException {
+        byte[] b = Files.readAllBytes(dir.resolve(file));
+        Metrics.read(b.length);
+        return b;
+    }
+
+    @Override public List<String> readLines(String file) throws IOException {
+        return Metrics.readAllLines(dir.resolve(file));
+    }
+
+    @Override public byte[] tail(String file, int n) throws IOException {
+        try (FileChannel ch = FileChannel.open(dir.resolve(file), StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size, n));
+            while (buf.hasRemaining() && ch.read(buf, size - buf.capacity() + buf.position()) > 0) { }
+            Metrics.read(buf.position());
+            return Arrays.copyOf(buf.array(), buf.position());
+        } catch (NoSuchFileException e) {
+            return new byte[0];
+        }
+    }
+
+    // Combines size and modification time into one number
+    @Override public long stamp(String file) throws IOException {
+        try {
+            BasicFileAttributes a = Files.readAttributes(dir.resolve(file), BasicFileAttributes.class);
+            return a.lastModifiedTime().to(TimeUnit.NANOSECONDS) * 31 + a.size();
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    @Override public void write(String file, List<String> lines) throws IOException {
+        Metrics.write(dir.resolve(file), lines);
+    }
+
+    // Appends, with a single fsync if forced
+    @Override public void append(String file, List<String> lines, boolean force) throws IOException {
+        try (FileChannel ch = FileChannel.open(dir.resolve(file),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buf = ByteBuffer.wrap(GameStore.text(lines));
+            while (buf.hasRemaining()) ch.write(buf);
+            if (force) ch.force(false);
+            Metrics.wrote(buf.capacity());
+        }
+    }
+
+    // fsync applies to the file, not the channel, so a new one reaches what other channels wrote
+    @Override public void force(String file) throws IOException {
+        try (FileChannel ch = FileChannel.open(dir.resolve(file), StandardOpenOption.WRITE)) {
+            ch.force(false);
+        } catch (NoSuchFileException e) {
+            // Replaced since by a forced rename, e.g. a compaction
+        }
+    }
+
+    @Override public Path forceKey(String file) {
+        return id().resolve(file);
+    }
+
+    // One file is swapped in by a rename; several are written as .new files and committed by replace.pending
+    @Override public void replace(Map<String, byte[]> files) throws IOException {
+        if (files.size() == 1) {
+            Map.Entry<String, byte[]> e = files.entrySet().iterator().next();
+            swap(e.getKey(), e.getValue());
+            return;
+        }
+        for (Map.Entry<String, byte[]> e: files.entrySet()) forced(dir.resolve(e.getKey() + ".new"), e.getValue(), e.getKey());
+        // Commit point: once replace.pending names the files, recovery finishes the renames below
+        swap(PENDING, GameStore.text(new ArrayList<>(files.keySet())));
+        for (String f: files.keySet()) rename(f + ".new", f);
+        forceDirectory(); // The renames are on disk before the marker goes
+        Files.delete(dir.resolve(PENDING));
+    }
+
+    @Override public void delete(String file) throws IOException {
+        Files.deleteIfExists(dir.resolve(file));
+    }
+
+    @Override public boolean needsRecovery() {
+        return Files.exists(dir.resolve(PENDING));
+    }
+
+    // Finishes the renames of a committed replace()
+    @Override public void recover() throws IOException {
+        Path pending = dir.resolve(PENDING);
+        if (Files.exists(pending)) {
+            for (String f: Metrics.readAllLines(pending))
+                if (Files.exists(dir.resolve(f + ".new"))) rename(f + ".new", f);
+            forceDirectory();
+            Files.delete(pending);
+        }
+    }
+
+    @Override public GameLock lock() throws IOException {
+        return GameLock.of(dir);
+    }
+
+    @Override public TurnWatch watch() {
+        return TurnWatch.of(dir);
+    }
+
+    // Replaces a file with a forced temporary copy in one rename, and forces the rename too
+    private void swap(String file, byte[] data) throws IOException {
+        Path tmp = dir.resolve(file + ".tmp");
+        forced(tmp, data, file);
+        rename(tmp.getFileName().toString(), file);
+        forceDirectory();
+    }
+
+    // Forces the directory, so the renames in it survive a power loss and not only the files' contents
+    private void forceDirectory() throws IOException {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+            Metrics.wrote(0);
+        } catch (AccessDeniedException e) {
+            // Windows cannot open a directory; there the rename is as durable as the file system makes it
+        }
+    }
+
+    // Writes a file and forces it to disk; the secret file is created owner-only, so no one else can ever open it
+    private static void forced(Path f, byte[] data, String name) throws IOException {
+        Set<OpenOption> options = new HashSet<>(Arrays.asList(StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING));
+        FileAttribute<?>[] attributes = new FileAttribute<?>[0];
+        if (name.equals(SECRET)) {
+            Files.deleteIfExists(f); // Left by a crash, maybe with other permissions
+            options.remove(StandardOpenOption.CREATE);
+            options.add(StandardOpenOption.CREATE_NEW);
+            attributes = SessionTokens.ownerOnlyAttributes(f, false);
+        }
+        try (FileChannel ch = FileChannel.open(f, options, attributes)) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(false);
+            Metrics.wrote(data.length);
+        }
+    }
+
+    private void rename(String from, String to) throws IOException {
+        Files.move(dir.resolve(from), dir.resolve(to), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
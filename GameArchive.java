@@ -0,0 +1,467 @@
+/*
+Purpose: This class keeps finished games in a compressed archive shared by all games, next to the game directories.
+A game is sealed as one frame: its seats, the winner, the final Player.score() of every seat and every journal
+record from START to the winning play, deflated and appended to the newest segment file (games-000001.c8a, ...).
+A segment is closed once it passes SEGMENT_BYTES, so thousands of games make a handful of files,
+and every sealed game is folded into the Leaderboard index.
+Games stream back one frame at a time, and a Replay rebuilds the Deck and Player state move by move
+with the game rules, so an archived game can be audited without its directory.
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+public class GameArchive implements Iterator<GameArchive.Game>, Closeable {
+    public static final String DIR = "archive"; // Archive directory, next to the game directories
+    public static final long SEGMENT_BYTES = 4 << 20; // A new segment starts once the newest one is this big
+
+    private static final int MAGIC = 0x43384152; // "C8AR", starts every frame
+    private static final int FRAME_HEADER = 12; // Magic, payload length, CRC32 of the payload
+
+    private final Iterator<Path> segments; // Segments not opened yet
+    private final long from; // Offset to start the first segment at
+    private Path seg; // Segment being read
+    private FileChannel ch; // Its open channel
+    private long pos; // Offset of the next frame in it
+    private int number = 0; // Games returned so far
+    private Game next; // Read ahead by hasNext()
+    private final Inflater inflater = new Inflater(); // Reused to inflate just the header of each frame
+    private byte[] header = new byte[1024];
+
+    private GameArchive(List<Path> segments, long from) {
+        this.segments = segments.iterator();
+        this.from = from;
+    }
+
+    // Archive directory of a game: the archive next to its directory
+    public static Path dirFor(Path gameDir) {
+        Path parent = gameDir.toAbsolutePath().normalize().getParent();
+        return parent == null ? Paths.get(DIR) : parent.resolve(DIR);
+    }
+
+    // Appends a finished game as one frame; the lock of the archive directory keeps processes from interleaving.
+    // Games sealed at the same time are written together: whoever gets the lock appends every queued frame
+    // with one fsync and one leaderboard update, and the others find theirs written.
+    public static void seal(Path dir, String name, List<String> seats, int[] scores, List<GameJournal.Record> records) throws IOException {
+        if (records.isEmpty() || !records.get(0).op.equals("START"))
+            throw new IllegalArgumentException("A game is archived from its START record on");
+        byte[] payload = compress(name, seats, scores, records);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + payload.length);
+        frame.putInt(MAGIC).putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        Files.createDirectories(dir);
+        Path key = dir.toAbsolutePath().normalize();
+        Pending mine = new Pending(frame);
+        Queue<Pending> queue = PENDING.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<>());
+        queue.add(mine);
+        GameLock lock = GameLock.of(dir);
+        try (GameLock.Held w = lock.write(); GameLock.Held x = lock.exclusive()) {
+            if (!mine.written) write(dir, queue);
+        }
+        if (mine.failure != null) throw new IOException("Archiving failed: " + mine.failure.getMessage(), mine.failure);
+    }
+
+    // Frames waiting to be appended, by archive directory
+    private static final Map<Path, Queue<Pending>> PENDING = new ConcurrentHashMap<>();
+
+    // A frame and what became of it; both fields are set under the archive lock
+    private static class Pending {
+        final ByteBuffer frame;
+        boolean written = false;
+        IOException failure; // Set if the batch it was written in failed
+
+        Pending(ByteBuffer frame) {
+            this.frame = frame;
+        }
+    }
+
+    // Appends every queued frame to the newest segment with one fsync, then folds them into the leaderboard;
+    // needs the archive lock
+    private static void write(Path dir, Queue<Pending> queue) throws IOException {
+        List<Pending> batch = new ArrayList<>();
+        for (Pending p; (p = queue.poll()) != null; ) batch.add(p);
+        try {
+            List<Path> all = segments(dir);
+            Path seg = all.isEmpty() ? null : all.get(all.size() - 1);
+            if (seg == null || Files.size(seg) >= SEGMENT_BYTES)
+                seg = dir.resolve(String.format("games-%06d.c8a", all.size() + 1));
+            try (FileChannel out = FileChannel.open(seg,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                for (Pending p: batch) {
+                    while (p.frame.hasRemaining()) out.write(p.frame);
+                    Metrics.wrote(p.frame.capacity());
+                }
+                out.force(false);
+            }
+        } catch (IOException e) {
+            for (Pending p: batch) p.failure = e;
+        } finally {
+            for (Pending p: batch) p.written = true;
+        }
+        try {
+            Leaderboard.update(dir); // Folds in just these frames
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Leaderboard not updated, the next query catches up: " + e.getMessage());
+        }
+    }
+
+    // Payload of a frame: three header lines, then the journal records
+    private static byte[] compress(String name, List<String> seats, int[] scores, List<GameJournal.Record> records) throws IOException {
+        String winner = "-";
+        int turns = 0;
+        for (GameJournal.Record r: records)
+            if (r.op.equals("PLAY") || r.op.equals("PASS")) turns++; // Every turn ends in one of them
+        for (int i = 0; i < seats.size(); i++)
+            if (scores[i] == 0) winner = seats.get(i);
+        StringBuilder sb = new StringBuilder();
+        sb.append("GAME ").append(name).append(' ').append(System.currentTimeMillis()).append(' ')
+            .append(winner).append(' ').append(turns).append('\n');
+        sb.append("SEATS ").append(String.join(",", seats)).append('\n');
+        sb.append("SCORES");
+        for (int i = 0; i < scores.length; i++) sb.append(i == 0 ? ' ' : ',').append(scores[i]);
+        sb.append('\n');
+        for (GameJournal.Record r: records) sb.append(r.line()).append('\n');
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater d = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, d)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            d.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    // Segment files of an archive, oldest first
+    static List<Path> segments(Path dir) throws IOException {
+        List<Path> out = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return out;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "games-*.c8a")) {
+            for (Path p: ds) out.add(p);
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    // Opens an archive for reading; games come back oldest first, one frame in memory at a time.
+    // Games sealed while it is open may or may not be seen.
+    public static GameArchive open(Path dir) throws IOException {
+        return new GameArchive(segments(dir), 0);
+    }
+
+    // Opens one segment for reading from the given offset, e.g. the end of the last game already seen
+    public static GameArchive open(Path segment, long from) {
+        return new GameArchive(Collections.singletonList(segment), from);
+    }
+
+    @Override public boolean hasNext() {
+        try {
+            while (next == null) {
+                if (ch == null) {
+                    if (!segments.hasNext()) return false;
+                    pos = seg == null ? from : 0;
+                    seg = segments.next();
+                    ch = FileChannel.open(seg, StandardOpenOption.READ);
+                }
+                next = readFrame();
+                if (next == null) {
+                    ch.close();
+                    ch = null;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override public Game next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Game g = next;
+        next = null;
+        return g;
+    }
+
+    // Reads the frame at pos, or null at the end of the segment. A frame torn by a crash is skipped
+    // by looking for the next magic number, so the games sealed after it are still found.
+    private Game readFrame() throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(FRAME_HEADER);
+        long size = ch.size();
+        while (pos + FRAME_HEADER <= size) {
+            head.clear();
+            while (head.hasRemaining() && ch.read(head, pos + head.position()) > 0) { }
+            int len = head.getInt(4);
+            if (head.getInt(0) == MAGIC && len >= 0 && pos + FRAME_HEADER + len <= size) {
+                ByteBuffer payload = ByteBuffer.allocate(len);
+                while (payload.hasRemaining() && ch.read(payload, pos + FRAME_HEADER + payload.position()) > 0) { }
+                Metrics.read(FRAME_HEADER + len);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array());
+                if ((int) crc.getValue() == head.getInt(8)) {
+                    pos += FRAME_HEADER + len;
+                    return new Game(++number, seg.getFileName().toString(), pos, payload.array(), header(payload.array()));
+                }
+            }
+            pos++; // Not a whole frame here
+        }
+        return null;
+    }
+
+    // The three header lines of a payload, without inflating the moves after them
+    private String header(byte[] payload) throws IOException {
+        inflater.reset();
+        inflater.setInput(payload);
+        int n = 0, lines = 0;
+        try {
+            while (lines < 3) {
+                if (n == header.length) header = Arrays.copyOf(header, n * 2); // Big tables have long seat lines
+                int got = inflater.inflate(header, n, header.length - n);
+                if (got == 0 && (inflater.finished() || inflater.needsInput())) break;
+                for (int i = n; i < n + got; i++)
+                    if (header[i] == '\n') lines++;
+                n += got;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt archive frame " + (number + 1), e);
+        }
+        return new String(header, 0, n, StandardCharsets.UTF_8);
+    }
+
+    @Override public void close() throws IOException {
+        if (ch != null) ch.close();
+        ch = null;
+        inflater.end();
+    }
+
+    // Prints one line per archived game: number, game, date, winner, turns and the final scores
+    public static void list(Path dir, PrintStream out) throws IOException {
+        int n = 0;
+        try (GameArchive a = open(dir)) {
+            while (a.hasNext()) {
+                Game g = a.next();
+                out.printf("%d %s %tF %<tR %s in %d turns, scores: %s%n", g.number, g.name, g.sealedAt,
+                    g.winner == null ? "nobody won" : g.winner + " won", g.turns, g.scoreLine());
+                n++;
+            }
+        }
+        if (n == 0) out.println("No archived games in " + dir);
+    }
+
+    // Replays an archived game move by move, printing every move and checking it against the rules
+    public static void replay(Path dir, int number, PrintStream out) throws IOException {
+        try (GameArchive a = open(dir)) {
+            while (a.hasNext()) {
+                Game g = a.next();
+                if (g.number != number) continue;
+                out.println("Game " + g.name + " (" + g.seats.size() + " players)");
+                try (Replay r = g.replay()) {
+                    while (r.hasNext()) {
+                        GameJournal.Record rec = r.next();
+                        String move = describe(rec, r);
+                        if (move != null) out.println(rec.seq + " " + move);
+                    }
+                }
+                out.println("Scores: " + g.scoreLine());
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No archived game " + number);
+    }
+
+    // A record as a line of the replay, after it was applied; null for the deal of a single hand
+    private static String describe(GameJournal.Record rec, Replay r) {
+        switch (rec.op) {
+            case "START":
+                int decks = r.deck().getDecks();
+                return "Dealt from seed " + r.deck().getSeed() + (decks == 1 ? "" : " with " + decks + " decks")
+                    + ", top discard " + r.deck().topDiscard();
+            case "PLAY":
+                return rec.user + " plays " + rec.arg + (r.finished() ? " and wins" : ", top discard " + rec.arg);
+            case "DRAW":
+                return rec.user + " draws " + rec.arg + ", " + r.deck().drawCount() + " cards left to draw";
+            case "PASS":
+                return rec.user + " passes";
+            case "RESHUFFLE":
+                return "The discard pile is reshuffled into the draw pile";
+            default:
+                return null;
+        }
+    }
+
+    // One archived game: the header is read right away, the moves only by replay()
+    public static class Game {
+        public final int number; // Position in the archive, from 1
+        public final String segment; // Segment file it was read from
+        public final long end; // Offset right after its frame in that file
+        public final String name; // Game directory it was played in
+        public final long sealedAt; // When it was archived, in milliseconds since the epoch
+        public final String winner; // Null if nobody's hand was empty
+        public final int turns; // Turns played, i.e. plays and passes
+        public final List<String> seats; // Player names in seat order
+        public final List<Integer> scores; // Final Player.score() by seat
+        private final byte[] payload; // Compressed frame
+
+        Game(int number, String segment, long end, byte[] payload, String header) {
+            this.number = number;
+            this.segment = segment;
+            this.end = end;
+            this.payload = payload;
+            String[] h = header.split("\n", 4);
+            if (h.length < 4) throw new IllegalStateException("Corrupt archive frame " + number);
+            String[] g = h[0].split(" ");
+            String[] s = h[1].split(" ", 2);
+            String[] sc = h[2].split(" ", 2);
+            if (!g[0].equals("GAME") || !s[0].equals("SEATS") || !sc[0].equals("SCORES"))
+                throw new IllegalStateException("Corrupt archive frame " + number);
+            name = g[1];
+            sealedAt = Long.parseLong(g[2]);
+            winner = g[3].equals("-") ? null : g[3];
+            turns = Integer.parseInt(g[4]);
+            seats = Collections.unmodifiableList(Arrays.asList(s[1].split(",")));
+            List<Integer> l = new ArrayList<>();
+            for (String v: sc[1].split(",")) l.add(Integer.parseInt(v));
+            scores = Collections.unmodifiableList(l);
+        }
+
+        // Seats with their final scores, e.g. "Alice 0, Bob 12"
+        String scoreLine() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < seats.size(); i++)
+                sb.append(i == 0 ? "" : ", ").append(seats.get(i)).append(' ').append(scores.get(i));
+            return sb.toString();
+        }
+
+        private BufferedReader lines() {
+            return new BufferedReader(new InputStreamReader(
+                new InflaterInputStream(new ByteArrayInputStream(payload)), StandardCharsets.UTF_8));
+        }
+
+        // Replays the game from its deal, one journal record per step
+        public Replay replay() throws IOException {
+            BufferedReader in = lines();
+            for (int i = 0; i < 3; i++) in.readLine(); // The header
+            return new Replay(this, in);
+        }
+    }
+
+    // Rebuilds the state of an archived game record by record, checking every move with the rules GameManager
+    // checked it with; a record that does not follow from the deal fails with an IllegalStateException
+    public static class Replay implements Iterator<GameJournal.Record>, Closeable {
+        private final Game game;
+        private final BufferedReader in; // Rest of the frame, inflated as it is read
+        private final List<Player> players = new ArrayList<>();
+        private final Map<String, Player> byName = new HashMap<>();
+        private Deck deck;
+        private int currentIdx = 0;
+        private boolean hasDrawn = false;
+        private boolean finished = false;
+        private String line; // Read ahead by hasNext()
+
+        private Replay(Game game, BufferedReader in) {
+            this.game = game;
+            this.in = in;
+            for (String s: game.seats) {
+                Player p = new Player(s);
+                players.add(p);
+                byName.put(s, p);
+            }
+        }
+
+        public Deck deck() { return deck; } // Null before the START record
+        public List<Player> players() { return Collections.unmodifiableList(players); }
+        public Player current() { return players.get(currentIdx); }
+        public boolean hasDrawn() { return hasDrawn; }
+        public boolean finished() { return finished; }
+
+        @Override public boolean hasNext() {
+            if (line != null) return true;
+            try {
+                line = in.readLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (line == null) {
+                if (!finished) throw new IllegalStateException("Game " + game.number + " ends before anyone won");
+                for (int i = 0; i < players.size(); i++)
+                    if (players.get(i).score() != game.scores.get(i))
+                        throw new IllegalStateException("Game " + game.number + ": final score of " + game.seats.get(i) + " does not match the moves");
+            }
+            return line != null;
+        }
+
+        @Override public GameJournal.Record next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            GameJournal.Record r = GameJournal.Record.parse(line);
+            line = null;
+            try {
+                apply(r);
+            } catch (RuntimeException e) {
+                throw new IllegalStateException("Game " + game.number + ", record " + r.seq + ": " + e.getMessage());
+            }
+            return r;
+        }
+
+        // Applies a record the way GameManager applied the move when it was made
+        private void apply(GameJournal.Record r) {
+            if (finished) throw new IllegalStateException("Move after the game was won");
+            if (deck == null && !r.op.equals("START")) throw new IllegalStateException("Move before the deal");
+            Player p = r.user == null ? null : byName.get(r.user);
+            switch (r.op) {
+                case "START":
+                    if (deck != null) throw new IllegalStateException("Second deal");
+                    String[] a = r.arg.split(","); // Seed, then the decks
+                    deck = new Deck(Long.parseLong(a[0]), Integer.parseInt(a[1]));
+                    for (Player q: players) q.dealInitial(deck.deal(5));
+                    deck.start();
+                    break;
+                case "DEAL":
+                    if (p == null || !String.join(",", p.handLines()).equals(r.arg))
+                        throw new IllegalStateException("Deal does not follow from the seed");
+                    break;
+                case "PLAY":
+                    turn(p);
+                    p.play(Card.fromString(r.arg), deck); // Checks the card is held and matches the top discard
+                    if (p.hasWon()) finished = true;
+                    else nextTurn();
+                    break;
+                case "DRAW":
+                    turn(p);
+                    if (hasDrawn) throw new IllegalStateException("Second draw in one turn");
+                    if (p.draw(deck) != Card.fromString(r.arg)) throw new IllegalStateException("Draw does not match the draw pile");
+                    hasDrawn = true;
+                    break;
+                case "PASS":
+                    turn(p);
+                    if (!hasDrawn) throw new IllegalStateException("Pass without a draw");
+                    nextTurn();
+                    break;
+                case "RESHUFFLE":
+                    if (!deck.needsReshuffle() || deck.nextShuffleSeed() != Long.parseLong(r.arg))
+                        throw new IllegalStateException("Reshuffle does not follow from the seed");
+                    deck.reshuffle(Long.parseLong(r.arg));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown journal record: " + r.op);
+            }
+        }
+
+        private void turn(Player p) {
+            if (p != current()) throw new IllegalStateException("Not the turn of " + (p == null ? "that user" : p.getName()));
+        }
+
+        private void nextTurn() {
+            currentIdx = (currentIdx + 1) % players.size();
+            hasDrawn = false;
+        }
+
+        @Override public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+Purpose: This class runs Crazy Eights as a long-lived daemon on a local Unix-domain socket.
+It keeps one warm GameManager per game directory so a move does not pay for a JVM start,
+rereading users.txt and reloading every pile and hand.
+The CLI talks to it through DaemonClient; admin commands still run in the CLI process.
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class GameDaemon {
+    private final Path socketPath; // Socket file the daemon listens on
+    private final Map<Path, GameManager> games = new ConcurrentHashMap<>(); // One warm GameManager per game directory
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "crazyeights-client");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public GameDaemon(Path socketPath) {
+        this.socketPath = socketPath;
+    }
+
+    // Default socket location, one per OS user
+    public static Path defaultSocket() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "crazyeights-" + System.getProperty("user.name") + ".sock");
+    }
+
+    // Accepts clients until the process is killed
+    public void serve() throws IOException {
+        Files.deleteIfExists(socketPath); // Remove a socket left behind by a previous daemon
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            socketPath.toFile().deleteOnExit();
+            System.out.println("Daemon listening on " + socketPath);
+            while (true) {
+                SocketChannel ch = server.accept();
+                workers.execute(() -> handle(ch));
+            }
+        }
+    }
+
+    // Reads one request, runs it against the warm game and writes back the status and output
+    private void handle(SocketChannel ch) {
+        try (ch;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)))) {
+            String game = in.readUTF();
+            String command = in.readUTF();
+            String arg = in.readUTF();
+            String user = in.readUTF();
+            String password = in.readUTF();
+            String token = in.readUTF();
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            int status = 0;
+            try (PrintStream ps = new PrintStream(buf, true, "UTF-8")) {
+                GameManager gm = games.computeIfAbsent(Paths.get(game), this::open);
+                gm.useOutput(ps); // Per thread: reads of one game run side by side, moves are locked by the game
+                gm.usePrompt(p -> password);
+                gm.useToken(token.isEmpty() ? null : token); // A warm daemon checks a cached token without HMAC or SHA3
+                run(gm, command, arg, user);
+            } catch (Exception e) {
+                status = 1;
+                buf.reset();
+                buf.write(String.valueOf(e.getMessage()).getBytes("UTF-8"));
+            }
+            out.writeInt(status);
+            out.writeUTF(buf.toString("UTF-8"));
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Client dropped: " + e.getMessage());
+        }
+    }
+
+    // Creates the resident GameManager for a game directory
+    private GameManager open(Path dir) {
+        try {
+            GameManager gm = new GameManager(dir.toString());
+            gm.setResident(true);
+            return gm;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Dispatches a game command the same way CrazyEights.main does
+    private static void run(GameManager gm, String command, String arg, String user) throws IOException {
+        switch (command) {
+            case "order":
+                gm.order(user);
+                break;
+            case "play":
+                gm.play(arg, user);
+                break;
+            case "cards":
+                String[] cs = arg.split(":");
+                gm.cards(cs[0], cs[0], user);
+                break;
+            case "draw":
+                gm.draw(user);
+                break;
+            case "pass":
+                gm.pass(user);
+                break;
+            case "moves":
+            case "hint":
+                gm.moves(user, command.equals("hint"));
+                break;
+            case "spectate":
+                gm.spectate(user);
+                break;
+            case "wait-turn":
+                gm.waitTurn(user, arg.isEmpty() ? 0 : Long.parseLong(arg)); // Holds this client's thread, not the game
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid command");
+        }
+    }
+}
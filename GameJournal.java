@@ -0,0 +1,261 @@
+/*
+Purpose: This class keeps the write-ahead journal of a game.
+Every action (deal, draw, play, pass, reshuffle with its seed) is appended to journal.log as one short line
+and forced to disk once (or once per group commit, see WriteBehind), instead of rewriting the pile, hand and turn files. The files live in the game's GameStore.
+The snapshot is either the text files, with snapshot.txt saying which journal record they cover,
+or game.bin, which carries that sequence number in its header.
+Compaction rewrites the snapshot in the background and moves the records it covers to history.log,
+which keeps the current game from its START record on, so a finished game can be archived.
+Sequence numbers never restart, so the last one is the version of the game state.
+*/
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class GameJournal {
+    // Journal records appended since the last snapshot before a compaction is scheduled
+    public static final int COMPACT_EVERY = 64;
+
+    // Single background thread shared by all games for compaction
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "crazyeights-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final List<Future<?>> PENDING = Collections.synchronizedList(new ArrayList<>());
+
+    private static final String JOURNAL = "journal.log"; // Append-only action log
+    private static final String SNAPSHOT = "snapshot.txt"; // Sequence number covered by the text files
+    private static final String HISTORY = "history.log"; // Records of the current game that compaction dropped from the journal
+
+    private final GameStore store; // Where the game keeps its files
+    private final GameLock lock; // Lock of the game; compaction writes under it
+    private final AtomicBoolean compacting = new AtomicBoolean(); // At most one compaction per game at a time
+
+    // One journal line: "<seq> <OP> <user> <arg>", with "-" for a missing user or argument
+    public static class Record {
+        public final long seq;
+        public final String op;
+        public final String user;
+        public final String arg;
+
+        Record(long seq, String op, String user, String arg) {
+            this.seq = seq;
+            this.op = op;
+            this.user = user;
+            this.arg = arg;
+        }
+
+        // Parses a journal line
+        static Record parse(String line) {
+            String[] p = line.split(" ", 4);
+            if (p.length != 4) throw new IllegalStateException("Corrupt journal record: " + line);
+            return new Record(Long.parseLong(p[0]), p[1], dash(p[2]), dash(p[3]));
+        }
+
+        private static String dash(String s) { return "-".equals(s) ? null : s; }
+
+        // The journal line of the record
+        String line() { return seq + " " + record(op, user, arg); }
+    }
+
+    public GameJournal(GameStore store) throws IOException {
+        this.store = store;
+        this.lock = store.lock();
+    }
+
+    // Formats the body of a record; the sequence number is added on append
+    public static String record(String op, String user, String arg) {
+        return op + " " + (user == null ? "-" : user) + " " + (arg == null ? "-" : arg);
+    }
+
+    // A copy of the game state, captured under the game lock, that compaction writes later
+    public interface Snapshot {
+        void write(long seq) throws IOException;
+    }
+
+    // Sequence number the snapshot files cover (0 for a game without a snapshot yet)
+    public long snapshotSeq() throws IOException {
+        Path dir = store.directory();
+        if (dir != null && BinaryGameFile.exists(dir)) return BinaryGameFile.map(dir).seq();
+        if (!store.exists(SNAPSHOT)) return 0;
+        return Long.parseLong(store.readLines(SNAPSHOT).get(0).trim());
+    }
+
+    // Returns the records after the snapshot; the caller holds the game lock and has read the snapshot files
+    public List<Record> tail() throws IOException {
+        long from = snapshotSeq();
+        List<Record> tail = new ArrayList<>();
+        for (Record r: readAll())
+            if (r.seq > from) tail.add(r);
+        return tail;
+    }
+
+    // Version of the state on disk: the last sequence number in the journal or covered by the snapshot
+    public long diskVersion() throws IOException {
+        return Math.max(lastRecordSeq(), snapshotSeq());
+    }
+
+    // Appends the records with consecutive sequence numbers and a single fsync, which WriteBehind may defer and
+    // share with other moves; returns the new version.
+    // Fails if the state on disk is no longer at the version the caller loaded; needs the exclusive lock.
+    public long append(List<String> bodies, long expectedVersion) throws IOException {
+        long seq = diskVersion();
+        if (seq != expectedVersion)
+            throw new ConcurrentModificationException("Game changed (version " + seq + ", expected " + expectedVersion + ")");
+        List<String> lines = new ArrayList<>();
+        for (String b: bodies) lines.add(++seq + " " + b);
+        boolean sync = WriteBehind.syncing();
+        store.append(JOURNAL, lines, sync); // One fsync per action, not one per rewritten file
+        if (!sync) WriteBehind.written(store, JOURNAL); // Or one per group commit, shared with other moves
+        return seq;
+    }
+
+    // Every record of the current game, from its START on: history.log followed by the journal
+    public List<Record> history() throws IOException {
+        List<Record> out = new ArrayList<>();
+        long last = 0;
+        List<Record> all = readLines(HISTORY);
+        all.addAll(readAll());
+        for (Record r: all) {
+            if (r.op.equals("START")) out.clear();
+            else if (r.seq <= last) continue; // Copied twice by an interrupted compaction
+            out.add(r);
+            last = r.seq;
+        }
+        return out;
+    }
+
+    // True when enough records piled up since the last snapshot
+    public boolean needsCompaction(long version) throws IOException {
+        return version - snapshotSeq() >= COMPACT_EVERY;
+    }
+
+    // Writes the snapshot on the shared compactor thread; it must be captured at sequence number seq
+    public void compactInBackground(long seq, Snapshot snapshot) {
+        if (!compacting.compareAndSet(false, true)) return; // One is already running, the next move retries
+        PENDING.removeIf(Future::isDone); // A daemon never calls awaitCompactions()
+        PENDING.add(COMPACTOR.submit(() -> {
+            try (Metrics.Command m = Metrics.start("compact");
+                 GameLock.Held w = lock.write(); GameLock.Held x = lock.exclusive()) {
+                Metrics.lap(Metrics.Phase.LOCK);
+                compact(seq, snapshot);
+            } catch (IOException e) {
+                System.err.println("Compaction failed for " + store + ": " + e.getMessage());
+            } finally {
+                compacting.set(false);
+            }
+            return null;
+        }));
+    }
+
+    // Waits for scheduled compactions, so a short-lived CLI process does not exit in the middle of one
+    public static void awaitCompactions() {
+        synchronized (PENDING) {
+            for (Future<?> f: PENDING) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    System.err.println("Compaction failed: " + e.getCause().getMessage());
+                }
+            }
+            PENDING.clear();
+        }
+    }
+
+    // Writes the snapshot for seq, then drops the journal records it covers; needs the exclusive lock
+    public void compact(long seq, Snapshot snapshot) throws IOException {
+        if (seq <= snapshotSeq()) return; // A newer snapshot already exists
+        snapshot.write(seq);
+        truncate(seq);
+    }
+
+    // Snapshot in the text layout: the given file contents plus snapshot.txt
+    public Snapshot textSnapshot(Map<String, List<String>> files) {
+        return seq -> writeText(seq, files);
+    }
+
+    // Replaces the text files and snapshot.txt together, so the files and the sequence number they cover agree
+    private void writeText(long seq, Map<String, List<String>> files) throws IOException {
+        Map<String, byte[]> out = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> e: files.entrySet()) out.put(e.getKey(), GameStore.text(e.getValue()));
+        out.put(SNAPSHOT, GameStore.text(Collections.singletonList(Long.toString(seq))));
+        store.replace(out);
+    }
+
+    // Rewrites the journal with only the records after seq. The dropped records are appended to history.log first,
+    // or replace it when they start a new game; a crash in between only copies some of them twice.
+    private void truncate(long seq) throws IOException {
+        List<String> keep = new ArrayList<>(), dropped = new ArrayList<>();
+        boolean newGame = false;
+        for (Record r: readAll()) {
+            if (r.seq > seq) {
+                keep.add(r.line());
+                continue;
+            }
+            if (r.op.equals("START")) {
+                dropped.clear(); // The previous game's history ends here
+                newGame = true;
+            }
+            dropped.add(r.line());
+        }
+        if (newGame) store.replace(Collections.singletonMap(HISTORY, GameStore.text(dropped)));
+        else if (!dropped.isEmpty()) store.append(HISTORY, dropped, true);
+        store.replace(Collections.singletonMap(JOURNAL, GameStore.text(keep)));
+    }
+
+    // Reads every complete record; a torn last line without a newline is ignored
+    private List<Record> readAll() throws IOException {
+        return readLines(JOURNAL);
+    }
+
+    // Reads every complete record of a journal or history file
+    private List<Record> readLines(String file) throws IOException {
+        List<Record> out = new ArrayList<>();
+        if (!store.exists(file)) return out;
+        String txt = new String(store.read(file), StandardCharsets.UTF_8);
+        int end = txt.lastIndexOf('\n');
+        if (end < 0) return out;
+        for (String l: txt.substring(0, end).split("\n"))
+            if (!l.isEmpty()) out.add(Record.parse(l));
+        return out;
+    }
+
+    // Sequence number of the last complete record, read from the end of the journal (0 if it is empty)
+    private long lastRecordSeq() throws IOException {
+        byte[] window = store.tail(JOURNAL, 512); // Records are short; the last one fits in the window
+        String txt = new String(window, StandardCharsets.UTF_8);
+        int end = txt.lastIndexOf('\n');
+        if (end < 0) return 0;
+        int start = txt.lastIndexOf('\n', end - 1) + 1;
+        if (start == 0 && window.length == 512) { // Window maybe too small, fall back to a full read
+            List<Record> all = readAll();
+            return all.isEmpty() ? 0 : all.get(all.size() - 1).seq;
+        }
+        return Record.parse(txt.substring(start, end)).seq;
+    }
+
+    // True if a compaction was interrupted or the last record is torn
+    public boolean needsRecovery() throws IOException {
+        if (store.needsRecovery()) return true;
+        byte[] last = store.tail(JOURNAL, 1);
+        return last.length == 1 && last[0] != '\n';
+    }
+
+    // Finishes an interrupted compaction and cuts off a torn last record; needs the exclusive lock
+    public void recover() throws IOException {
+        if (store.needsRecovery()) store.recover();
+        if (!store.exists(JOURNAL)) return;
+        byte[] b = store.read(JOURNAL);
+        int keep = b.length;
+        while (keep > 0 && b[keep - 1] != '\n') keep--; // Walk back to the last newline
+        if (keep < b.length) store.replace(Collections.singletonMap(JOURNAL, Arrays.copyOf(b, keep)));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+Purpose: This class coordinates access to one game directory.
+Inside a process it is a read/write lock shared by everything that touches the game;
+across processes it is a FileChannel lock on game.lock, shared for reads and exclusive while writing files.
+A game in a store file locks one byte of that file instead, past its end, so games of the same file do not block each other.
+Moves load under the shared lock and only take the exclusive lock to commit, checking the state version.
+*/
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class GameLock {
+    private static final Map<Path, GameLock> LOCKS = new ConcurrentHashMap<>(); // One lock per game
+
+    private final ReentrantReadWriteLock local = new ReentrantReadWriteLock(); // Lock between threads of this process
+    private final FileChannel channel; // Open channel on game.lock, or on the store file
+    private final long position, size; // Locked range of the channel
+    private FileLock fileLock; // File lock held by this process, if any
+    private int sharedHolders; // Threads of this process using the shared file lock
+
+    // Releases what was acquired; closing never throws a checked exception
+    public interface Held extends AutoCloseable {
+        @Override void close();
+    }
+
+    private GameLock(FileChannel channel, long position, long size) {
+        this.channel = channel;
+        this.position = position;
+        this.size = size;
+    }
+
+    // Returns the lock of a game directory
+    public static GameLock of(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        GameLock l = LOCKS.get(key);
+        if (l != null) return l;
+        synchronized (LOCKS) {
+            l = LOCKS.get(key);
+            if (l == null) {
+                l = new GameLock(FileChannel.open(key.resolve("game.lock"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE), 0, Long.MAX_VALUE);
+                LOCKS.put(key, l);
+            }
+            return l;
+        }
+    }
+
+    // Returns the lock of a game kept under key that locks one byte at position of a channel the caller keeps open
+    static GameLock of(Path key, FileChannel channel, long position) {
+        return LOCKS.computeIfAbsent(key, k -> new GameLock(channel, position, 1));
+    }
+
+    // Lock for a read: other readers in this and other processes may hold it at the same time
+    public Held read() throws IOException {
+        local.readLock().lock();
+        try {
+            acquireShared();
+        } catch (IOException | RuntimeException e) {
+            local.readLock().unlock();
+            throw e;
+        }
+        return () -> {
+            releaseShared();
+            local.readLock().unlock();
+        };
+    }
+
+    // Lock for a change: exclusive in this process, shared on disk until exclusive() is taken for the commit
+    public Held write() throws IOException {
+        local.writeLock().lock();
+        try {
+            acquireShared();
+        } catch (IOException | RuntimeException e) {
+            local.writeLock().unlock();
+            throw e;
+        }
+        return () -> {
+            releaseShared();
+            local.writeLock().unlock();
+        };
+    }
+
+    // Swaps the shared file lock for an exclusive one while the game files are written; needs write() first
+    public Held exclusive() throws IOException {
+        if (!local.isWriteLockedByCurrentThread()) throw new IllegalStateException("exclusive() needs write()");
+        synchronized (this) {
+            if (fileLock != null && !fileLock.isShared()) { // Nested: already exclusive
+                return () -> { };
+            }
+            fileLock.release(); // Other processes may slip in here; the version check catches that
+            fileLock = channel.lock(position, size, false);
+        }
+        return () -> {
+            synchronized (this) {
+                try {
+                    fileLock.release();
+                    fileLock = channel.lock(position, size, true); // Back to the shared lock write() holds
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private synchronized void acquireShared() throws IOException {
+        if (sharedHolders == 0) fileLock = channel.lock(position, size, true);
+        sharedHolders++;
+    }
+
+    private synchronized void releaseShared() {
+        if (--sharedHolders > 0) return;
+        try {
+            fileLock.release();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            fileLock = null;
+        }
+    }
+}
@@ -3,33 +3,227 @@ By: Jennifer Vicentes
 Purpose: This class manages the game state, including player management, game state transitions, and game actions.
 It handles user authentication, game initialization, and the main game loop. 
 It provides methods for adding/removing users, starting the game, managing turns, and performing game actions like drawing cards and playing cards.
-It also handles the loading and saving of game state to files.
+It also handles the loading and saving of game state to files, through the game's GameStore.
 
 All the comments I wrote were put for me to keep track while developing, they are not AI generated.
 */ 
 
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.io.*;
 
 public class GameManager {
-    private final Path gameDir; // Path to the game directory
-    private final AuthManager auth; // Authentication manager for user validation
+    // Attempts of a move before giving up when other clients keep changing the game
+    private static final int RETRIES = 5;
+
+    private final GameStore store; // Where the game files are kept: a game directory or a slot of a store file
+    private volatile AuthManager auth; // Authentication manager for user validation
+    private volatile long authStamp; // Stamp of users.txt when auth was read
     private Deck deck; // The deck of cards used in the game
     private final List<Player> players = new ArrayList<>(); // List of players in the game
+    private final Map<String, Player> byName = new HashMap<>(); // The same players by name, for large tables
     private int currentIdx = 0; // Index of the current player
     private boolean hasDrawn = false; // Flag to track if the current player has drawn a card
-    private final Path turnFile; // File to store the current turn information
-    private final Path stateFile; // File to store the game state
+    private static final String TURN_FILE = "turn.txt"; // File to store the current turn information
+    private static final String STATE_FILE = "state.txt"; // File to store the game state
+    private final GameJournal journal; // Write-ahead log of the moves since the last snapshot
+    private final GameLock lock; // Shared lock for reads, exclusive lock for writes
+    private final ThreadLocal<AuthManager.Prompt> prompt =
+        ThreadLocal.withInitial(() -> AuthManager.consolePrompt(System.console())); // Where passwords come from
+    private final ThreadLocal<PrintStream> out = ThreadLocal.withInitial(() -> System.out); // Where command output goes
+    private final ThreadLocal<String> token = new ThreadLocal<>(); // Session token replacing the password, if any
+    private final SessionTokens sessions; // Issues and checks session tokens
+    private final TurnWatch watch; // Wakes up players waiting for their turn
+    private final AtomicReference<GameSnapshot> published = new AtomicReference<>(); // Latest view of the resident state
+    private boolean resident = false; // True when kept warm by the daemon between commands
+    private boolean loaded = false; // True once the state in memory has been loaded from disk
+    private long version = -1; // Journal sequence number the state in memory is at
+    private long loadedUsers = 0; // Stamp of users.txt when the players were loaded
+
+    // A command body run under the game lock
+    private interface Action {
+        void run() throws IOException;
+    }
 
-    // Constructor to initialize the GameManager with the game directory
+    // Constructor to initialize the GameManager with the game directory, or "<store file>#<game>"
     public GameManager(String name) throws IOException {
-        gameDir = Paths.get(name);
-        if (!Files.isDirectory(gameDir))
-            throw new IllegalArgumentException("Game does not exist");
-        auth = new AuthManager(gameDir);
-        turnFile = gameDir.resolve("turn.txt");
-        stateFile = gameDir.resolve("state.txt");
+        store = GameStore.open(name); // Fails if the game does not exist
+        auth = new AuthManager(store);
+        authStamp = usersStamp();
+        journal = new GameJournal(store);
+        lock = store.lock();
+        sessions = new SessionTokens(store);
+        watch = store.watch();
+    }
+
+    // Uses the given prompt for passwords on this thread instead of the console
+    public void usePrompt(AuthManager.Prompt prompt) { this.prompt.set(prompt); }
+
+    // Sends this thread's command output to the given stream instead of System.out
+    public void useOutput(PrintStream out) { this.out.set(out); }
+
+    // Authenticates this thread's commands with a session token instead of a password (null for the password)
+    public void useToken(String token) { this.token.set(token); }
+
+    // Keeps the loaded state in memory between commands (daemon mode)
+    public void setResident(boolean resident) throws IOException {
+        this.resident = resident;
+        if (resident) watch.start(); // Published views must go stale when another process moves
+    }
+
+    private AuthManager.Prompt prompt() { return prompt.get(); }
+    private PrintStream out() { return out.get(); }
+
+    // Current users; users.txt is reread when another process changed it
+    private AuthManager auth() throws IOException {
+        long s = usersStamp();
+        if (s != authStamp) {
+            auth = new AuthManager(store);
+            authStamp = s;
+        }
+        return auth;
+    }
+
+    // Checks the user's session token, or their password when there is none
+    private void requireUser(String user) throws IOException {
+        String t = token.get();
+        if (t == null) {
+            auth().requireUser(user, prompt());
+        } else {
+            if (!auth().exists(user)) throw new SecurityException("Unknown User");
+            sessions.require(user, t);
+        }
+        Metrics.lap(Metrics.Phase.AUTH);
+    }
+
+    // Checks the admin's session token or password
+    private void requireAdmin() throws IOException {
+        if (token.get() == null) auth().requireAdmin(prompt());
+        else requireUser("admin");
+        Metrics.lap(Metrics.Phase.AUTH);
+    }
+
+    // Changes whenever users.txt does
+    private long usersStamp() throws IOException {
+        return store.stamp("users.txt");
+    }
+
+    // True when the resident state in memory is still the state on disk
+    private boolean current() throws IOException {
+        return resident && loaded && version == journal.diskVersion() && loadedUsers == usersStamp();
+    }
+
+    // Finishes a compaction or append another process died in the middle of
+    private void recoverIfNeeded() throws IOException {
+        if (!journal.needsRecovery()) return;
+        try (GameLock.Held w = lock.write(); GameLock.Held x = lock.exclusive()) {
+            if (journal.needsRecovery()) journal.recover(); // Someone else may have been busy, not dead
+            loaded = false;
+        }
+    }
+
+    // Runs a read-only command; readers share the lock, only a stale state is reloaded under the write lock
+    private void reading(Action body) throws IOException {
+        recoverIfNeeded();
+        try (GameLock.Held r = lock.read()) {
+            Metrics.lap(Metrics.Phase.LOCK);
+            if (current()) {
+                Metrics.lap(Metrics.Phase.LOAD);
+                body.run();
+                return;
+            }
+        }
+        try (GameLock.Held w = lock.write()) { // Still shared on disk, so other processes keep reading
+            try {
+                Metrics.lap(Metrics.Phase.LOCK);
+                if (!current()) loadState();
+                Metrics.lap(Metrics.Phase.LOAD);
+                body.run();
+            } catch (IOException | RuntimeException e) {
+                loaded = false;
+                throw e;
+            }
+        }
+    }
+
+    // Runs a move: load, validate and apply in memory, then commit() checks the version under the exclusive lock.
+    // A stale version means another client moved first, so the move is retried on the fresh state.
+    // With group commit the move then waits for its fsync, the game unlocked, before anyone hears of it.
+    private void writing(Action body) throws IOException {
+        recoverIfNeeded();
+        for (int attempt = 1; ; attempt++) {
+            try (GameLock.Held w = lock.write()) {
+                try {
+                    Metrics.lap(Metrics.Phase.LOCK);
+                    if (!current()) loadState();
+                    Metrics.lap(Metrics.Phase.LOAD);
+                    body.run();
+                    break;
+                } catch (ConcurrentModificationException e) {
+                    loaded = false;
+                    if (attempt == RETRIES) throw new IllegalStateException("The game keeps changing, try again");
+                } catch (IOException | RuntimeException e) {
+                    loaded = false; // Reload from disk next time rather than trust a half-applied command
+                    throw e;
+                }
+            }
+        }
+        WriteBehind.awaitOwn();
+        Metrics.lap(Metrics.Phase.PERSIST);
+        watch.signal();
+    }
+
+    // The watch of the game, for listeners such as the game server's pushes
+    TurnWatch watch() {
+        return watch;
+    }
+
+    // Read-only view of the resident game. While nothing changed since the published view was taken it is
+    // returned without any lock or disk read; otherwise a new one is taken under the read lock and published.
+    // A move by another process is seen as soon as its file event arrives. The game server pushes from it too.
+    GameSnapshot view() throws IOException {
+        GameSnapshot v = published.get();
+        if (v != null && v.stamp == watch.changes()) {
+            Metrics.lap(Metrics.Phase.LOAD);
+            return v;
+        }
+        long stamp = watch.changes(); // Before loading, so a change made meanwhile leaves the new view stale
+        GameSnapshot[] taken = new GameSnapshot[1];
+        reading(() -> taken[0] = takeView(stamp));
+        return published.accumulateAndGet(taken[0], (old, now) -> old != null && old.stamp > now.stamp ? old : now);
+    }
+
+    // Pictures the state in memory; needs the game lock
+    private GameSnapshot takeView(long stamp) throws IOException {
+        State s = readState();
+        return new GameSnapshot(version, stamp, s.name(), players, currentIdx, hasDrawn, s == State.NOT_STARTED ? null : deck);
+    }
+
+    // Runs a command under a Metrics timer named after it
+    private void timed(String command, Action body) throws IOException {
+        Metrics.Command m = Metrics.start(command);
+        try {
+            body.run();
+        } catch (IOException | RuntimeException e) {
+            m.failed();
+            throw e;
+        } finally {
+            m.close();
+        }
+    }
+
+    // Runs an admin command with the game locked exclusively from start to end
+    private void exclusively(Action body) throws IOException {
+        recoverIfNeeded();
+        try (GameLock.Held w = lock.write(); GameLock.Held x = lock.exclusive()) {
+            Metrics.lap(Metrics.Phase.LOCK);
+            loaded = false; // Admin commands rewrite the files behind the state in memory
+            body.run();
+        }
+        WriteBehind.awaitOwn();
+        watch.signal();
     }
 
     // Enum to represent the state of the game
@@ -37,13 +231,18 @@ public class GameManager {
 
     // Writes the current game state to the state file
     private void writeState(State s) throws IOException {
-        Files.write(stateFile, Collections.singletonList(s.name()));
+        if (binary()) {
+            BinaryGameFile.writeState(store.directory(), s.ordinal());
+            return;
+        }
+        store.write(STATE_FILE, Collections.singletonList(s.name()));
     }
 
     // Reads the current game state from the state file
     private State readState() throws IOException {
-        if (!Files.exists(stateFile)) return State.NOT_STARTED;
-        String txt = Files.readAllLines(stateFile).get(0).trim();
+        if (binary()) return State.values()[BinaryGameFile.map(store.directory()).state()];
+        if (!store.exists(STATE_FILE)) return State.NOT_STARTED;
+        String txt = store.readLines(STATE_FILE).get(0).trim();
         return State.valueOf(txt);
     }
 
@@ -54,173 +253,754 @@ public class GameManager {
             throw new IllegalStateException("You cannot modify users while the game is in progress");
     }
 
+    // True when the game keeps its state in the binary game file instead of the text files
+    private boolean binary() {
+        return store.directory() != null && BinaryGameFile.exists(store.directory());
+    }
+
     // Initializes a new game directory and sets up the admin user
     public static void init(String game) throws IOException {
-        Path d = Paths.get(game);
-        if (Files.exists(d)) throw new IllegalArgumentException("Game already exists");
-        Files.createDirectory(d);
-        Files.createFile(d.resolve("users.txt"));
-        Files.write(d.resolve("state.txt"),
-            Collections.singletonList(State.NOT_STARTED.name()));
-        AuthManager a = new AuthManager(d);
-        a.initAdmin(System.console());
+        init(game, false);
+    }
+
+    // Initializes a new game directory in the text or binary format and sets up the admin user
+    public static void init(String game, boolean binary) throws IOException {
+        init(game, binary, AuthManager.consolePrompt(System.console()));
+    }
+
+    // Initializes a new game directory (or a game in a store file), reading the admin password from the given prompt
+    public static void init(String game, boolean binary, AuthManager.Prompt prompt) throws IOException {
+        if (binary && game.indexOf('#') >= 0) throw new IllegalArgumentException("Games in a store file use the text format");
+        GameStore s = GameStore.create(game);
+        s.write("users.txt", Collections.emptyList());
+        if (binary)
+            BinaryGameFile.write(s.directory(), BinaryGameFile.encode(State.NOT_STARTED.ordinal(), 0, false,
+                Deck.fromPiles(Collections.emptyList(), Collections.emptyList(), 0, 0), Collections.emptyMap()), 0);
+        else
+            s.write(STATE_FILE, Collections.singletonList(State.NOT_STARTED.name()));
+        AuthManager a = new AuthManager(s);
+        a.initAdmin(prompt);
     }
 
     // Adds a new user to the game
     public void addUser(String u) throws IOException {
-        auth.requireAdmin(System.console());
-        ensureCanManageUsers();
-        auth.addUser(u, System.console());
+        timed("add-user", () -> {
+            requireAdmin();
+            exclusively(() -> {
+                ensureCanManageUsers();
+                auth().addUser(u, prompt());
+            });
+        });
     }
 
     // Removes a user from the game
     public void removeUser(String u) throws IOException {
-        auth.requireAdmin(System.console());
-        ensureCanManageUsers();
-        auth.removeUser(u);
-        Files.deleteIfExists(gameDir.resolve(u + ".txt"));
+        timed("remove-user", () -> {
+            requireAdmin();
+            exclusively(() -> {
+                ensureCanManageUsers();
+                auth().removeUser(u);
+                sessions.revoke(u); // A later user of the same name must not inherit the tokens
+                store.delete(u + ".txt");
+            });
+        });
+    }
+
+    // Adds the users of a CSV of "name,password" or "name,sha3:<hash>" lines with one write of the users file
+    public void importUsers(BufferedReader csv) throws IOException {
+        timed("import-users", () -> {
+            requireAdmin();
+            List<String> lines = readAll(csv);
+            exclusively(() -> {
+                ensureCanManageUsers();
+                out().println("Imported " + auth().importUsers(lines) + " users");
+            });
+        });
+    }
+
+    // Prints every player as an importUsers line, with their password hash
+    public void exportUsers() throws IOException {
+        timed("export-users", () -> {
+            requireAdmin();
+            for (String l: auth().exportUsers()) out().println(l);
+        });
+    }
+
+    // Removes the users named one per line (or by export lines) with one write of the users file
+    public void removeUsers(BufferedReader names) throws IOException {
+        timed("remove-users", () -> {
+            requireAdmin();
+            List<String> lines = readAll(names);
+            exclusively(() -> {
+                ensureCanManageUsers();
+                List<String> removed = auth().removeUsers(lines);
+                sessions.revoke(removed); // A later user of the same name must not inherit the tokens
+                for (String u: removed) store.delete(u + ".txt");
+                out().println("Removed " + removed.size() + " users");
+            });
+        });
+    }
+
+    private static List<String> readAll(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String l; (l = in.readLine()) != null; ) lines.add(l);
+        return lines;
+    }
+
+    // Checks the user's password once and returns a session token for the following commands
+    public String login(String user, long ttlMinutes) throws IOException {
+        String[] token = new String[1];
+        timed("login", () -> {
+            if (user.equals("admin")) auth().requireAdmin(prompt());
+            else auth().requireUser(user, prompt());
+            Metrics.lap(Metrics.Phase.AUTH);
+            try (GameLock.Held w = lock.write(); GameLock.Held x = lock.exclusive()) { // The first login creates the key
+                Metrics.lap(Metrics.Phase.LOCK);
+                token[0] = sessions.issue(user, ttlMinutes);
+            }
+        });
+        return token[0];
+    }
+
+    // Invalidates every session token issued to a user
+    public void revoke(String user) throws IOException {
+        timed("revoke", () -> {
+            requireAdmin();
+            if (!auth().exists(user)) throw new IllegalArgumentException("User does not exist");
+            exclusively(() -> sessions.revoke(user));
+            out().println("Revoked the sessions of " + user);
+        });
     }
 
     // Starts the game by initializing the deck, dealing cards, and setting the initial state
     public void start() throws IOException {
-        auth.requireAdmin(System.console());
-        writeState(State.IN_PROGRESS);
+        start(null, null);
+    }
+
+    // Starts the game from the given deck seed (a fresh one if null), so the deal can be reproduced
+    public void start(Long seed) throws IOException {
+        start(seed, null);
+    }
+
+    // Starts the game with a shoe of the given number of decks (null: as few as the table needs)
+    public void start(Long seed, Integer decks) throws IOException {
+        timed("start", () -> {
+            requireAdmin();
+            exclusively(() -> {
+                writeState(State.IN_PROGRESS);
+                List<String> records = new ArrayList<>();
+                startMove(seed, decks, records);
+                // The version keeps counting from the previous game, so stale clients of that game fail too
+                version = journal.append(records, journal.diskVersion());
+                journal.compact(version, snapshot()); // The deal is written as the first snapshot
+                loadedUsers = usersStamp();
+                loaded = true;
+            });
+        });
+    }
+
+    // Seats the current users and deals a new game in memory, adding its START and DEAL records
+    private void startMove(Long seed, Integer decks, List<String> records) throws IOException {
         loadPlayers();
         if (players.size() < 2) throw new IllegalStateException("Required at least 2 players");
-        deck = new Deck();
+        int n = decks == null ? decksFor(players.size()) : decks;
+        if (players.size() * 5 + 1 > n * Card.COUNT)
+            throw new IllegalStateException(players.size() + " players need at least " + decksFor(players.size()) + " decks");
+        deal(seed == null ? new SplittableRandom().nextLong() : seed, n);
+        records.add(GameJournal.record("START", null, deck.getSeed() + "," + n));
         for (Player p: players)
-            p.dealInitial(deck.deal(5));
+            records.add(GameJournal.record("DEAL", p.getName(), String.join(",", p.handLines())));
+    }
+
+    // Decks a table needs when none are asked for: one while it deals everyone,
+    // else enough to also leave a card per player in the draw pile
+    static int decksFor(int players) {
+        if (players * 5 + 1 <= Card.COUNT) return 1;
+        return Math.min(Deck.MAX_DECKS, (players * 6 + 1 + Card.COUNT - 1) / Card.COUNT);
+    }
+
+    // Shuffles a new shoe from seed, deals five cards to every player and turns up the first discard
+    private void deal(long seed, int decks) {
+        deck = new Deck(seed, decks);
+        for (Player p: players) p.dealInitial(deck.deal(5));
         deck.start();
-        deck.savePiles(gameDir);
         currentIdx = 0;
         hasDrawn   = false;
-        saveTurn();
     }
 
     // Loads the list of players from the user data
     private void loadPlayers() throws IOException {
         players.clear();
-        for (String u: auth.getUsers().keySet())
-            if (!u.equals("admin"))
-                players.add(new Player(u, gameDir));
+        byName.clear();
+        for (String u: auth().players()) {
+            Player p = new Player(u, store);
+            players.add(p);
+            byName.put(u, p);
+        }
+    }
+
+    // Line stored in the turn file
+    private String turnLine() {
+        return currentIdx + "," + hasDrawn;
+    }
+
+    // Captures the state in memory in the game's snapshot format
+    private GameJournal.Snapshot snapshot() throws IOException {
+        if (!binary()) return journal.textSnapshot(snapshotFiles(changedHands()));
+        Map<String, List<Card>> hands = new LinkedHashMap<>();
+        for (Player p: players) hands.put(p.getName(), p.getHand());
+        byte[] image = BinaryGameFile.encode(readState().ordinal(), currentIdx, hasDrawn, deck, hands);
+        return seq -> BinaryGameFile.write(store.directory(), image, seq);
+    }
+
+    // Contents of the snapshot files for the state in memory: the piles, the turn and the given hands (null: all)
+    private Map<String, List<String>> snapshotFiles(Set<String> hands) {
+        Map<String, List<String>> files = new LinkedHashMap<>(deck.pileFiles());
+        files.put("turn.txt", Collections.singletonList(turnLine()));
+        for (Player p: players)
+            if (hands == null || hands.contains(p.getName()))
+                files.put(p.getName() + ".txt", p.handLines());
+        return files;
+    }
+
+    // Players whose hand files are behind: those named in the journal since the snapshot on disk, or all after a deal.
+    // A compaction then writes what the recent moves touched, not every hand at the table.
+    private Set<String> changedHands() throws IOException {
+        Set<String> names = new HashSet<>();
+        for (GameJournal.Record r: journal.tail()) {
+            if (r.op.equals("START")) return null;
+            if (r.user != null) names.add(r.user);
+        }
+        return names;
+    }
+
+    // Seals the game that was just won into the archive next to the game directory or store file.
+    // The frame is taken here, under the game lock; appending it waits for the archive, which every game
+    // shares, so callers run the returned action after releasing the game lock. A failure is only reported:
+    // the game itself is finished and on disk either way.
+    private Action sealing() throws IOException {
+        List<GameJournal.Record> history = journal.history();
+        List<String> seats = new ArrayList<>();
+        int[] scores = new int[players.size()];
+        for (int i = 0; i < players.size(); i++) {
+            seats.add(players.get(i).getName());
+            scores[i] = players.get(i).score();
+        }
+        return () -> {
+            try {
+                GameArchive.seal(GameArchive.dirFor(store.id()), store.name(), seats, scores, history);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Archiving " + store + " failed: " + e.getMessage());
+            }
+        };
+    }
+
+    // Appends the records of one move if nobody else moved since the state was loaded
+    private void append(List<String> records) throws IOException {
+        Metrics.lap(Metrics.Phase.RULES); // Everything since the load was validating and applying the move
+        try (GameLock.Held x = lock.exclusive()) {
+            version = journal.append(records, version);
+        }
+        Metrics.lap(Metrics.Phase.PERSIST);
+    }
+
+    // Journals the records of one move, then compacts in the background when the journal got long
+    private void commit(List<String> records) throws IOException {
+        append(records);
+        if (journal.needsCompaction(version))
+            journal.compactInBackground(version, snapshot());
+        Metrics.lap(Metrics.Phase.PERSIST);
+    }
+
+    // Applies a journal record written after the snapshot to the state in memory.
+    // Records were checked when journaled, so a replay only reads the hands and piles a check needs:
+    // only the last play of the tail can have won, as a win is compacted right away.
+    private void apply(GameJournal.Record r, boolean lastPlay) throws IOException {
+        switch (r.op) {
+            case "PLAY":
+                Player p = player(r.user);
+                p.replayPlay(Card.fromString(r.arg), deck);
+                if (lastPlay && p.hasWon()) {
+                    if (readState() != State.FINISHED)
+                        writeState(State.FINISHED); // The process died between journaling the win and marking it
+                } else {
+                    nextTurn();
+                }
+                break;
+            case "DRAW":
+                player(r.user).replayDraw(Card.fromString(r.arg), deck);
+                hasDrawn = true;
+                break;
+            case "PASS":
+                nextTurn();
+                break;
+            case "RESHUFFLE":
+                deck.reshuffle(Long.parseLong(r.arg));
+                break;
+            case "START":
+                String[] a = r.arg.split(","); // Seed, then the decks
+                deal(Long.parseLong(a[0]), Integer.parseInt(a[1])); // The process died before the new game's first snapshot
+                if (readState() != State.IN_PROGRESS) writeState(State.IN_PROGRESS);
+                break;
+            case "DEAL":
+                break; // Follows from the seed in START
+            default:
+                throw new IllegalStateException("Unknown journal record: " + r.op);
+        }
+    }
+
+    // Moves the turn to the next player
+    private void nextTurn() {
+        currentIdx = (currentIdx + 1) % players.size();
+        hasDrawn   = false;
     }
 
-    // Saves the current turn information to the turn file
-    private void saveTurn() throws IOException {
-        String line = currentIdx + "," + hasDrawn;
-        Files.write(turnFile, Collections.singletonList(line));
+    // Finds a loaded player by name
+    private Player player(String name) {
+        Player p = byName.get(name);
+        if (p == null) throw new IllegalArgumentException("User does not exist");
+        return p;
     }
 
     // Loads the current turn information from the turn file
     private void loadTurn() throws IOException {
-        if (Files.exists(turnFile)) {
-            String line = Files.readAllLines(turnFile).get(0);
+        if (store.exists(TURN_FILE)) {
+            String line = store.readLines(TURN_FILE).get(0);
             String[] parts = line.split(",", 2);
             currentIdx = Integer.parseInt(parts[0]);
-            if (parts.length == 2) {
-                hasDrawn = Boolean.parseBoolean(parts[1]);
-            } else {
-                hasDrawn = false;
-                saveTurn();
-            }
+            hasDrawn = parts.length == 2 && Boolean.parseBoolean(parts[1]); // Old turn files have no flag
         } else {
             currentIdx = 0;
             hasDrawn   = false;
         }
     }
 
-    // Loads the game state, including the deck, players, and turn information
+    // Loads the game state, including the deck, players, and turn information; needs the game lock.
+    // In the text format the piles and hands are read lazily, so each command only reads the files it uses:
+    // order reads turn.txt, cards one hand and the end of discard.txt, draw and play the pile and hand they change.
     private void loadState() throws IOException {
-        deck = Deck.load(gameDir);
+        long users = usersStamp();
+        long snapshotSeq = journal.snapshotSeq();
+        if (binary()) {
+            loadBinary();
+        } else {
+            deck = Deck.load(store);
+            loadPlayers();
+            loadTurn();
+        }
+        List<GameJournal.Record> tail = journal.tail();
+        int lastPlay = -1;
+        for (int i = 0; i < tail.size(); i++)
+            if (tail.get(i).op.equals("PLAY")) lastPlay = i;
+        for (int i = 0; i < tail.size(); i++) apply(tail.get(i), i == lastPlay); // Replay the moves made since the snapshot
+        // Readers share the resident state, and a file read later could be from a newer snapshot;
+        // before the first deal there are no piles or hands to read
+        if (resident && readState() != State.NOT_STARTED) {
+            deck.readAll();
+            for (Player p: players) p.readHand();
+        }
+        version = tail.isEmpty() ? snapshotSeq : tail.get(tail.size() - 1).seq;
+        loadedUsers = users;
+        loaded = true;
+    }
+
+    // Loads deck, hands and turn from one mapping of the binary game file
+    private void loadBinary() throws IOException {
+        BinaryGameFile f = BinaryGameFile.map(store.directory());
+        deck = Deck.fromPiles(f.drawPile(), f.discardPile(), f.seed(), f.shuffles());
         loadPlayers();
-        loadTurn();
+        Map<String, List<Card>> hands = f.hands();
+        for (Player p: players)
+            p.restoreHand(hands.getOrDefault(p.getName(), Collections.emptyList()));
+        currentIdx = f.currentIdx();
+        hasDrawn = f.hasDrawn();
+    }
+
+    // Converts the game between the text layout and the binary game file
+    public void convert(String format) throws IOException {
+        timed("convert", () -> {
+            requireAdmin();
+            boolean toBinary;
+            if (format.equals("binary")) toBinary = true;
+            else if (format.equals("text")) toBinary = false;
+            else throw new IllegalArgumentException("Unknown format: " + format);
+            Path gameDir = store.directory();
+            if (gameDir == null) throw new IllegalStateException("Games in a store file use the text format");
+
+            exclusively(() -> {
+                if (toBinary == binary()) throw new IllegalStateException("The game is already in the " + format + " format");
+                State s = readState();
+                boolean started = store.exists(TURN_FILE) || binary() && BinaryGameFile.map(gameDir).seq() > 0;
+                if (started) loadState();
+                else {
+                    deck = Deck.fromPiles(Collections.emptyList(), Collections.emptyList(), 0, 0);
+                    loadPlayers();
+                }
+                long seq = journal.diskVersion(); // The new snapshot covers the whole journal
+                if (toBinary) {
+                    Map<String, List<Card>> hands = new LinkedHashMap<>();
+                    if (started) for (Player p: players) hands.put(p.getName(), p.getHand());
+                    BinaryGameFile.write(gameDir, BinaryGameFile.encode(s.ordinal(), currentIdx, hasDrawn, deck, hands), seq);
+                    // game.bin wins over the text files from here on, so removing them is safe
+                    for (String f: new String[]{"state.txt", "snapshot.txt", "turn.txt", "draw.txt", "discard.txt", "seed.txt"})
+                        store.delete(f);
+                    for (Player p: players) store.delete(p.getName() + ".txt");
+                } else {
+                    store.write(STATE_FILE, Collections.singletonList(s.name()));
+                    if (started) journal.textSnapshot(snapshotFiles(null)).write(seq);
+                    Files.delete(gameDir.resolve(BinaryGameFile.FILE)); // From here on the text files are read
+                }
+                loaded = false;
+            });
+            out().println("Converted to " + format);
+        });
     }
 
     // Displays the turn order for the specified user
     public void order(String user) throws IOException {
-        auth.requireUser(user, System.console());
-        loadState();  // loads players AND currentIdx from turn.txt
-    
-        System.out.println("Turn order (next first):");
-        for (int offset = 0; offset < players.size(); offset++) {
-            String name = players.get((currentIdx + offset) % players.size()).getName();
-            System.out.println("  " + name);
-        }
-    }    
+        timed("order", () -> {
+            requireUser(user);
+            if (resident) {
+                printOrder(view().turnOrder());
+                return;
+            }
+            reading(() -> { // Only users.txt and turn.txt are read
+                List<String> order = new ArrayList<>();
+                for (int offset = 0; offset < players.size(); offset++)
+                    order.add(players.get((currentIdx + offset) % players.size()).getName());
+                printOrder(order);
+            });
+        });
+    }
+
+    private void printOrder(List<String> order) {
+        out().println("Turn order (next first):");
+        for (String name: order) out().println("  " + name);
+    }
+
+    // Shows what anyone watching the table sees: the state, the top discard and how many cards everyone holds
+    public void spectate(String as) throws IOException {
+        timed("spectate", () -> {
+            requireUser(as);
+            GameSnapshot v;
+            if (resident) v = view();
+            else {
+                GameSnapshot[] taken = new GameSnapshot[1];
+                reading(() -> taken[0] = takeView(0));
+                v = taken[0];
+            }
+            out().println("Game " + v.state + " at move " + v.version);
+            if (v.topDiscard != null) out().println("Top Discard: " + v.topDiscard + ", draw pile: " + v.drawCount + " cards");
+            out().println("Seats (next first):");
+            for (String name: v.turnOrder()) {
+                String drawn = name.equals(v.seats.get(v.currentIdx)) && v.hasDrawn ? ", has drawn" : "";
+                out().println("  " + name + ": " + v.hand(name).size() + " cards" + drawn);
+            }
+        });
+    }
+
+    // Blocks until it is the user's turn or the game is over, for at most timeoutSeconds (0: no limit).
+    // The password is checked once; after that the turn is only reread when the game changed.
+    public void waitTurn(String user, long timeoutSeconds) throws IOException {
+        timed("wait-turn", () -> {
+            requireUser(user);
+            long deadline = System.nanoTime() + (timeoutSeconds > 0 ? TimeUnit.SECONDS.toNanos(timeoutSeconds)
+                : Long.MAX_VALUE / 2); // No deadline, but far enough from overflowing
+            String[] done = new String[1];
+            while (true) {
+                long seen = watch.changes(); // Before reading, so a move made meanwhile still wakes us up
+                reading(() -> {
+                    State s = readState();
+                    if (s == State.FINISHED) done[0] = "The game is over";
+                    // A user without a seat (the admin, or added after the deal) waits for the game to end
+                    else if (s == State.IN_PROGRESS && byName.get(user) == players.get(currentIdx)) done[0] = "It is your turn";
+                });
+                if (done[0] != null) break;
+                if (!watch.await(seen, deadline)) throw new IllegalStateException("Timed out waiting for the turn");
+            }
+            out().println(done[0]);
+        });
+    }
 
     // Allows a user to play a card
     public void play(String cardStr, String user) throws IOException {
-        auth.requireUser(user, System.console());
-        loadState();
+        timed("play", () -> {
+            requireUser(user);
+            Card toPlay = Card.fromString(cardStr);
+            Action[] archive = new Action[1];
+            writing(() -> {
+                List<String> records = new ArrayList<>();
+                if (playMove(user, toPlay, records)) {
+                    try (GameLock.Held x = lock.exclusive()) {
+                        append(records);
+                        journal.compact(version, snapshot()); // Leave a finished game fully on disk
+                        writeState(State.FINISHED);
+                        archive[0] = sealing();
+                    }
+                    Metrics.lap(Metrics.Phase.PERSIST);
+                    out().println("¡" + user + " won!");
+                    return;
+                }
+                commit(records);
+            });
+            if (archive[0] != null) archive[0].run(); // Other players of this game need not wait for the archive
+        });
+    }
+
+    // Displays the cards held by a target user and the top of the discard pile
+    public void cards(String target, String who, String as) throws IOException {
+        timed("cards", () -> {
+            requireUser(as);
+            if (!as.equals("admin") && !as.equals(who))
+                throw new SecurityException("Without permission");
+            if (resident) {
+                GameSnapshot v = view();
+                printCards(target, v.hand(target), v.topDiscard);
+                return;
+            }
+            reading(() -> printCards(target, player(target).getHand(), deck.topDiscard())); // One hand and the end of discard.txt
+        });
+    }
+
+    private void printCards(String target, List<Card> hand, Card top) {
+        out().println("Hand of " + target + ": " + hand);
+        out().println("Top Discard: " + top);
+    }
+
+    // Lists the cards of the user that may go on the top discard, and with hint suggests what to do,
+    // so a player does not have to try cards until play stops rejecting them
+    public void moves(String user, boolean hint) throws IOException {
+        timed(hint ? "hint" : "moves", () -> {
+            requireUser(user);
+            if (resident) {
+                GameSnapshot v = view();
+                printMoves(user, v.handMask(user), v.topDiscard, v.state, v.seats.get(v.currentIdx), v.hasDrawn, hint);
+                return;
+            }
+            reading(() -> printMoves(user, player(user).handMask(), deck.topDiscard(), readState().name(),
+                players.get(currentIdx).getName(), hasDrawn, hint));
+        });
+    }
+
+    private void printMoves(String user, long hand, Card top, String state, String current, boolean hasDrawn, boolean hint) {
+        if (state.equals(State.NOT_STARTED.name())) throw new IllegalStateException("The game has not started");
+        long playable = hand & Card.matchMask(top.ordinal()); // The hand is a bitset, so this is one AND
+        out().println("Playable on " + top + ": " + Card.listOf(playable));
+        if (!hint) return;
+        if (state.equals(State.FINISHED.name())) out().println("Hint: the game is over");
+        else if (!current.equals(user)) out().println("Hint: wait, it is " + current + "'s turn");
+        else if (playable != 0) out().println("Hint: play " + BotStrategy.greedy(playable));
+        else out().println("Hint: " + (hasDrawn ? "pass" : "draw"));
+    }
+
+    // Allows a user to draw a card
+    public void draw(String user) throws IOException {
+        timed("draw", () -> {
+            requireUser(user);
+            writing(() -> {
+                List<String> records = new ArrayList<>();
+                Card c = drawMove(user, records);
+                commit(records);
+                out().println("Drawn card : " + c);
+                out().println("Hand: " + player(user).getHand());
+                out().println("Top of Discard: " + deck.topDiscard());
+            });
+        });
+    }
+
+    // Allows a user to pass their turn
+    public void pass(String user) throws IOException {
+        timed("pass", () -> {
+            requireUser(user);
+            writing(() -> {
+                List<String> records = new ArrayList<>();
+                passMove(user, records);
+                commit(records);
+                out().println("Top of Discard after passing: " + deck.topDiscard());
+                out().println("Next up: " + players.get(currentIdx).getName());
+            });
+        });
+    }
+
+    // Applies a script of commands in one pass: authenticates once, loads once, and persists at every
+    // "checkpoint" line and at the end. A failing line rolls everything back to the last checkpoint.
+    // Lines: add-user <name> <password>, remove-user <name>, start [seed [decks]], play <user> <card>,
+    // draw <user>, pass <user>, checkpoint; blank lines and # comments are skipped.
+    // The admin may move for any player, a player only for themselves.
+    public void batch(BufferedReader script, String as) throws IOException {
+        timed("batch", () -> {
+            requireUser(as);
+            exclusively(() -> new Batch(as).run(script));
+        });
+    }
+
+    // A batch in progress: what changed in memory since the last checkpoint
+    private class Batch {
+        private final String as; // User the batch runs as
+        private final boolean admin;
+        private State state; // Game state as of the last applied line
+        private final List<String> records = new ArrayList<>(); // Journal records since the last checkpoint
+        private final List<String> removed = new ArrayList<>(); // Users removed since the last checkpoint
+        private boolean changed = false; // Anything to persist at the next checkpoint
+        private int lineNo = 0, checkpointLine = 0, applied = 0;
+
+        Batch(String as) {
+            this.as = as;
+            this.admin = as.equals("admin");
+        }
+
+        void run(BufferedReader script) throws IOException {
+            state = readState();
+            if (state == State.NOT_STARTED) version = journal.diskVersion();
+            else loadState();
+            auth().defer();
+            String line;
+            while ((line = script.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                try {
+                    apply(line.split("\\s+"));
+                } catch (IOException | RuntimeException e) {
+                    rollback();
+                    throw new IllegalStateException("Line " + lineNo + ": " + e.getMessage() + " (rolled back to "
+                        + (checkpointLine == 0 ? "the start" : "the checkpoint at line " + checkpointLine) + ")");
+                }
+            }
+            checkpoint();
+            out().println("Applied " + applied + " commands");
+        }
+
+        private void apply(String[] w) throws IOException {
+            switch (w[0]) {
+                case "add-user":
+                    users(w, 3);
+                    auth().addUser(w[1], p -> w[2]);
+                    break;
+                case "remove-user":
+                    users(w, 2);
+                    auth().removeUser(w[1]);
+                    removed.add(w[1]);
+                    break;
+                case "start":
+                    if (!admin) throw new SecurityException("Only admin can start the game");
+                    if (w.length > 3) throw new IllegalArgumentException("Usage: start [seed [decks]]");
+                    startMove(w.length >= 2 ? Long.valueOf(w[1]) : null, w.length == 3 ? Integer.valueOf(w[2]) : null, records);
+                    state = State.IN_PROGRESS;
+                    break;
+                case "play":
+                    move(w, 3);
+                    if (playMove(w[1], Card.fromString(w[2]), records)) {
+                        state = State.FINISHED;
+                        out().println("¡" + w[1] + " won!");
+                    }
+                    break;
+                case "draw":
+                    move(w, 2);
+                    drawMove(w[1], records);
+                    break;
+                case "pass":
+                    move(w, 2);
+                    passMove(w[1], records);
+                    break;
+                case "checkpoint":
+                    checkpoint();
+                    return;
+                default:
+                    throw new IllegalArgumentException("Unknown batch command: " + w[0]);
+            }
+            changed = true;
+            applied++;
+        }
+
+        // Checks a user management line
+        private void users(String[] w, int words) {
+            if (!admin) throw new SecurityException("Only admin can manage users");
+            if (w.length != words) throw new IllegalArgumentException("Usage: " + w[0] + " <name>" + (words == 3 ? " <password>" : ""));
+            if (state == State.IN_PROGRESS)
+                throw new IllegalStateException("You cannot modify users while the game is in progress");
+        }
+
+        // Checks a move line
+        private void move(String[] w, int words) {
+            if (w.length != words) throw new IllegalArgumentException("Usage: " + w[0] + " <user>" + (words == 3 ? " <card>" : ""));
+            if (state != State.IN_PROGRESS) throw new IllegalStateException("The game is not in progress");
+            if (!admin && !w[1].equals(as)) throw new SecurityException("Without permission");
+        }
+
+        // Persists everything since the last checkpoint: users, journal, state and a fresh snapshot
+        private void checkpoint() throws IOException {
+            if (changed) {
+                auth().flush();
+                for (String u: removed) {
+                    sessions.revoke(u); // A later user of the same name must not inherit the tokens
+                    store.delete(u + ".txt");
+                }
+                removed.clear();
+                if (!records.isEmpty()) version = journal.append(records, version);
+                records.clear();
+                boolean won = state == State.FINISHED && readState() != State.FINISHED;
+                if (state != readState()) writeState(state);
+                if (state != State.NOT_STARTED) journal.compact(version, snapshot());
+                if (won) sealing().run(); // Admin batches are rare enough to hold the game meanwhile
+                auth().defer();
+                loadedUsers = usersStamp();
+                loaded = true;
+                changed = false;
+                Metrics.lap(Metrics.Phase.PERSIST);
+            }
+            checkpointLine = lineNo;
+        }
+
+        // Forgets everything since the last checkpoint; the files still hold it
+        private void rollback() throws IOException {
+            auth = new AuthManager(store);
+            authStamp = usersStamp();
+            loaded = false;
+        }
+    }
+
+    // Checks and applies a play in memory, adding its record; true if the player won
+    private boolean playMove(String user, Card toPlay, List<String> records) {
         Player p = players.get(currentIdx);
         if (!p.getName().equals(user))
             throw new SecurityException("Not your turn");
-        Card toPlay = Card.fromString(cardStr);
-        if (!p.getHand().contains(toPlay))
+        if (!p.hasCard(toPlay))
             throw new IllegalArgumentException("You don't have that card");
         if (!toPlay.matches(deck.topDiscard()))
             throw new IllegalArgumentException("You can't play that card");
         p.play(toPlay, deck);
-        deck.savePiles(gameDir);
-
-        if (p.hasWon()) {
-            System.out.println("¡" + user + " won!");
-            writeState(State.FINISHED);
-            return;
-        }
-
-        int next = (currentIdx + 1) % players.size();
-        currentIdx = next;
-        hasDrawn   = false;
-        saveTurn();
-    }
-
-    // Displays the cards held by a target user and the top of the discard pile
-    public void cards(String target, String who, String as) throws IOException {
-        auth.requireUser(as, System.console());
-        loadState();
-        if (!as.equals("admin") && !as.equals(who))
-            throw new SecurityException("Without permission");
-        Player p = players.stream()
-                .filter(x->x.getName().equals(target))
-                .findFirst().orElseThrow(()->new IllegalArgumentException("User does not exist"));
-        System.out.println("Hand of " + target + ": " + p.getHand());
-        System.out.println("Top Discard: " + deck.topDiscard());
-        saveTurn();
+        records.add(GameJournal.record("PLAY", user, toPlay.toString()));
+        if (p.hasWon()) return true;
+        nextTurn();
+        return false;
     }
 
-    // Allows a user to draw a card
-    public void draw(String user) throws IOException {
-        auth.requireUser(user, System.console());
-        loadState();
+    // Checks and applies a draw in memory, reshuffling first if needed, adding its records; returns the card
+    private Card drawMove(String user, List<String> records) {
         Player p = players.get(currentIdx);
         if (!p.getName().equals(user)) throw new SecurityException("Not your turn");
 
         if (hasDrawn) {
             throw new IllegalStateException("You have already drawn this turn");
         }
+        if (deck.needsReshuffle()) {
+            long seed = deck.nextShuffleSeed();
+            deck.reshuffle(seed);
+            records.add(GameJournal.record("RESHUFFLE", null, Long.toString(seed)));
+        }
         Card c = p.draw(deck);
-        deck.savePiles(gameDir);
         hasDrawn = true;
-        saveTurn();   
-        System.out.println("Drawn card : " + c);
-        System.out.println("Hand: " + p.getHand());
-        System.out.println("Top of Discard: " + deck.topDiscard());
+        records.add(GameJournal.record("DRAW", user, c.toString()));
+        return c;
     }
 
-    // Allows a user to pass their turn
-    public void pass(String user) throws IOException {
-        auth.requireUser(user, System.console());
-        loadState();
+    // Checks and applies a pass in memory, adding its record
+    private void passMove(String user, List<String> records) {
         Player p = players.get(currentIdx);
         if (!p.getName().equals(user)) throw new SecurityException("Not your turn");
         if (!hasDrawn) throw new IllegalStateException("You must draw before passing");
-  
-        System.out.println("Top of Discard after passing: " + deck.topDiscard());
-        int next = (currentIdx + 1) % players.size();
-        currentIdx = next;
-        hasDrawn   = false;
-        saveTurn();
-        System.out.println("Next up: " + players.get(currentIdx).getName()); 
+        nextTurn();
+        records.add(GameJournal.record("PASS", user, null));
     }
 }
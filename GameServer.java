@@ -0,0 +1,323 @@
+/*
+Purpose: This class serves the games in one directory (or one store file) to remote players over TCP, with a line-based protocol.
+Each connection gets its own thread, a virtual one on Java 21 and later, and sits at one table:
+a resident GameManager shared by everyone playing or watching that game, so moves go through
+the same play, draw and pass checks as on the command line. Whenever the game moves, whether through
+the server or another process, everyone at the table is pushed whose turn it is and the new top discard.
+
+Client to server, one command per line:
+    HELLO <game> <user> <token>    join a game with a session token from --login; replies with --spectate
+    CARDS, ORDER, MOVES, HINT, SPECTATE, DRAW, PASS, PLAY <card>, QUIT
+    START [seed]                   deal a new game; admin only
+Server to client: the output of a command as ". <line>" lines, then "OK" or "ERR <message>".
+Pushes come between replies, never inside one, and carry the journal version:
+    TURN <version> <player> <top discard>    OVER <version> <winner> <top discard>
+A slow reader is only pushed the latest state, never a backlog.
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class GameServer {
+    static final int MAX_LINE = 1024; // Longest command line accepted, in bytes
+    private static final long PLATFORM_STACK = 256 << 10; // Stack of a connection thread without virtual threads
+
+    private final int port; // TCP port to listen on
+    private final Path root; // Directory or store file holding the games
+    private final Map<String, Table> tables = new ConcurrentHashMap<>(); // Tables by game name
+    private final ExecutorService threads = threadPerTask("crazyeights-remote");
+
+    public GameServer(int port, Path root) {
+        this.port = port;
+        this.root = root;
+    }
+
+    // One new thread per task: virtual threads when the JDK has them (21+), else small daemon platform threads
+    static ExecutorService threadPerTask(String name) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(null, r, name, PLATFORM_STACK);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // True when threadPerTask gives virtual threads
+    static boolean virtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Accepts players until the process is killed
+    public void serve() throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 4096)) {
+            System.out.println("Serving the games in " + root.toAbsolutePath().normalize() + " on port " + server.getLocalPort()
+                + (virtualThreads() ? " with virtual threads" : " with platform threads"));
+            while (true) {
+                Socket s = server.accept();
+                s.setTcpNoDelay(true); // Replies and pushes are single small lines
+                threads.execute(() -> new Connection(s).run());
+            }
+        }
+    }
+
+    // The table of a game, opened on its first player
+    private Table table(String game) {
+        if (!game.matches("[A-Za-z0-9._-]+") || game.equals(".") || game.equals(".."))
+            throw new IllegalArgumentException("Invalid game name");
+        return tables.computeIfAbsent(game, this::open);
+    }
+
+    private Table open(String game) {
+        try {
+            return new Table(game, GameStore.locate(root, game));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Reads one line without the line end; null at the end of the stream.
+    // A line longer than MAX_LINE is skipped to its end and then rejected, so the stream stays in step.
+    static String readLine(InputStream in) throws IOException {
+        byte[] buf = new byte[64];
+        int n = 0, b;
+        boolean tooLong = false;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (n == 0) return null;
+                break;
+            }
+            if (n == MAX_LINE) tooLong = true;
+            if (tooLong) continue;
+            if (n == buf.length) buf = Arrays.copyOf(buf, Math.min(MAX_LINE, n * 2));
+            buf[n++] = (byte) b;
+        }
+        if (tooLong) throw new IllegalArgumentException("Line too long");
+        if (n > 0 && buf[n - 1] == '\r') n--;
+        return new String(buf, 0, n, StandardCharsets.UTF_8);
+    }
+
+    // Push line for a view of the game, or null before it starts
+    static String event(GameSnapshot v) {
+        if (v.state.equals("IN_PROGRESS")) return "TURN " + v.version + " " + v.seats.get(v.currentIdx) + " " + v.topDiscard;
+        if (!v.state.equals("FINISHED")) return null;
+        String winner = "-";
+        for (String name: v.seats)
+            if (v.hand(name).isEmpty()) winner = name;
+        return "OVER " + v.version + " " + winner + " " + v.topDiscard;
+    }
+
+    // A game and the connections at it
+    private class Table {
+        final String name;
+        final GameManager gm; // Resident, shared by every connection at the table
+        final Set<Connection> seated = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean scheduled = new AtomicBoolean(); // A push is queued
+        private final ReentrantLock pushing = new ReentrantLock(); // One push at a time, in version order
+        private long pushed = -1; // Version of the last push; guarded by pushing
+        private String last; // Last push line, for connections joining later; guarded by pushing
+
+        Table(String name, String game) throws IOException {
+            this.name = name;
+            gm = new GameManager(game);
+            gm.setResident(true); // Also watches the game on disk, so moves by other processes are pushed too
+            gm.watch().listen(this::changed);
+        }
+
+        // Called on every change of the game; queues one push, however many changes arrive meanwhile
+        void changed() {
+            if (scheduled.compareAndSet(false, true)) threads.execute(this::push);
+        }
+
+        // Pushes the game's turn to everyone at the table if a move was made since the last push
+        private void push() {
+            scheduled.set(false); // Changes from here on queue another push
+            pushing.lock();
+            try {
+                GameSnapshot v = gm.view();
+                if (v.version == pushed) return; // A change without a move, e.g. a login
+                pushed = v.version;
+                String e = event(v);
+                last = e;
+                if (e != null) for (Connection c: seated) c.push(e);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Push for " + name + " failed: " + e.getMessage());
+            } finally {
+                pushing.unlock();
+            }
+        }
+
+        // Seats a connection and pushes it the current turn; under the push lock, so it cannot overtake a newer push
+        void join(Connection c) {
+            pushing.lock();
+            try {
+                seated.add(c);
+                if (last != null) c.push(last);
+                else changed(); // Nothing pushed yet since the server started
+            } finally {
+                pushing.unlock();
+            }
+        }
+    }
+
+    // One remote player, on its own thread
+    private class Connection {
+        private final Socket socket;
+        private final ReentrantLock writing = new ReentrantLock(); // Keeps replies and pushes whole
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream(); // Output of the running command
+        private final AtomicReference<String> pending = new AtomicReference<>(); // Latest push not yet sent
+        private final AtomicBoolean flushing = new AtomicBoolean(); // A thread is sending pushes
+        private Table table; // Set by HELLO
+        private String user;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        void run() {
+            try (socket) {
+                InputStream in = new BufferedInputStream(socket.getInputStream(), 512);
+                while (true) {
+                    String line;
+                    try {
+                        line = readLine(in);
+                    } catch (IllegalArgumentException e) {
+                        send("ERR " + e.getMessage() + "\n");
+                        continue;
+                    }
+                    if (line == null) break;
+                    if (line.isEmpty()) continue;
+                    String[] w = line.trim().split(" +");
+                    if (w[0].equals("QUIT")) {
+                        send("OK\n");
+                        break;
+                    }
+                    command(w);
+                }
+            } catch (IOException e) {
+                // Dropped; the table forgets it below
+            } finally {
+                if (table != null) table.seated.remove(this);
+            }
+        }
+
+        // Runs one command and sends its output and status as one reply
+        private void command(String[] w) throws IOException {
+            buf.reset();
+            String error = null;
+            boolean joined = false;
+            try {
+                if (table == null && !w[0].equals("HELLO")) throw new IllegalStateException("Send HELLO <game> <user> <token> first");
+                switch (w[0]) {
+                    case "HELLO":
+                        args(w, 4);
+                        if (table != null) throw new IllegalStateException("Already at " + table.name);
+                        Table t = table(w[1]);
+                        t.gm.useOutput(new PrintStream(buf, true, StandardCharsets.UTF_8)); // Per thread, so set once
+                        t.gm.useToken(w[3]);
+                        t.gm.usePrompt(p -> { throw new SecurityException("A session token is required"); });
+                        t.gm.spectate(w[2]); // Checks the token
+                        table = t;
+                        user = w[2];
+                        joined = true;
+                        break;
+                    case "CARDS":
+                        args(w, 1);
+                        table.gm.cards(user, user, user);
+                        break;
+                    case "ORDER":
+                        args(w, 1);
+                        table.gm.order(user);
+                        break;
+                    case "MOVES":
+                    case "HINT":
+                        args(w, 1);
+                        table.gm.moves(user, w[0].equals("HINT"));
+                        break;
+                    case "SPECTATE":
+                        args(w, 1);
+                        table.gm.spectate(user);
+                        break;
+                    case "PLAY":
+                        args(w, 2);
+                        table.gm.play(w[1], user);
+                        break;
+                    case "DRAW":
+                        args(w, 1);
+                        table.gm.draw(user);
+                        break;
+                    case "PASS":
+                        args(w, 1);
+                        table.gm.pass(user);
+                        break;
+                    case "START":
+                        if (w.length > 2) throw new IllegalArgumentException("Usage: START [seed]");
+                        table.gm.start(w.length == 2 ? Long.valueOf(w[1]) : null, null); // Checks the admin token
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown command: " + w[0]);
+                }
+            } catch (IOException | RuntimeException e) {
+                error = String.valueOf(e.getMessage()).replace('\n', ' ');
+            }
+            StringBuilder reply = new StringBuilder();
+            if (error == null)
+                for (String l: buf.toString(StandardCharsets.UTF_8).split("\n"))
+                    if (!l.isEmpty()) reply.append(". ").append(l).append('\n');
+            reply.append(error == null ? "OK\n" : "ERR " + error + "\n");
+            send(reply.toString());
+            if (joined) table.join(this); // After the reply, so the first push follows it
+        }
+
+        private void args(String[] w, int n) {
+            if (w.length != n) throw new IllegalArgumentException("Wrong number of arguments for " + w[0]);
+        }
+
+        // Writes a whole reply or push
+        private void send(String s) throws IOException {
+            writing.lock();
+            try {
+                socket.getOutputStream().write(s.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                writing.unlock();
+            }
+        }
+
+        // Queues a push; an unsent older one is replaced, as the newest version supersedes it
+        void push(String line) {
+            pending.set(line);
+            if (flushing.compareAndSet(false, true)) threads.execute(this::flush);
+        }
+
+        // Sends queued pushes until none is left
+        private void flush() {
+            try {
+                while (true) {
+                    String line = pending.getAndSet(null);
+                    if (line != null) {
+                        send(line + "\n");
+                        continue;
+                    }
+                    flushing.set(false);
+                    if (pending.get() == null || !flushing.compareAndSet(false, true)) return; // Else one came meanwhile
+                }
+            } catch (IOException e) {
+                flushing.set(false);
+                table.seated.remove(this); // The reading thread notices too and closes the socket
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+Purpose: This class is an immutable picture of a game as of one journal version:
+state, seats and turn, top discard, size of the draw pile, the discard pile's card counts and every hand.
+The daemon publishes the latest one so order, cards and spectate can be answered without the game lock.
+*/
+
+import java.util.*;
+
+public final class GameSnapshot {
+    public final long version; // Journal sequence number the picture is at
+    public final long stamp; // Change count of the game's TurnWatch when the picture was taken
+    public final String state; // NOT_STARTED, IN_PROGRESS or FINISHED
+    public final List<String> seats; // Player names in seat order
+    public final int currentIdx; // Seat whose turn it is
+    public final boolean hasDrawn; // True when that player has drawn this turn
+    public final Card topDiscard; // Null before the first deal
+    public final int drawCount; // Cards left in the draw pile
+    private final Map<String, List<Card>> hands; // Hands by player name
+    private final Map<String, Long> masks; // Distinct cards of each hand, as bitsets of card ordinals
+    private final int[] discards; // Copies of each card ordinal in the discard pile
+
+    // Copies everything it needs, so the players and deck may change right after
+    GameSnapshot(long version, long stamp, String state, List<Player> players, int currentIdx, boolean hasDrawn, Deck deck) {
+        this.version = version;
+        this.stamp = stamp;
+        this.state = state;
+        this.currentIdx = currentIdx;
+        this.hasDrawn = hasDrawn;
+        this.topDiscard = deck == null ? null : deck.topDiscard();
+        this.drawCount = deck == null ? 0 : deck.drawCount();
+        this.discards = deck == null ? new int[Card.COUNT] : deck.discardCounts();
+        List<String> names = new ArrayList<>(players.size());
+        Map<String, List<Card>> h = new HashMap<>();
+        Map<String, Long> m = new HashMap<>();
+        for (Player p: players) {
+            names.add(p.getName());
+            h.put(p.getName(), deck == null ? Collections.emptyList() : p.getHand()); // getHand is already a copy
+            m.put(p.getName(), deck == null ? 0L : p.handMask());
+        }
+        this.seats = Collections.unmodifiableList(names);
+        this.hands = Collections.unmodifiableMap(h);
+        this.masks = Collections.unmodifiableMap(m);
+    }
+
+    // Hand of a player
+    public List<Card> hand(String name) {
+        List<Card> h = hands.get(name);
+        if (h == null) throw new IllegalArgumentException("User does not exist");
+        return h;
+    }
+
+    // Distinct cards of a player's hand as a bitset of card ordinals
+    public long handMask(String name) {
+        Long m = masks.get(name);
+        if (m == null) throw new IllegalArgumentException("User does not exist");
+        return m;
+    }
+
+    // Copies of each card ordinal in the discard pile, top included
+    public int[] discards() {
+        return discards.clone();
+    }
+
+    // Seat names starting with the player whose turn it is
+    public List<String> turnOrder() {
+        List<String> order = new ArrayList<>(seats.size());
+        for (int offset = 0; offset < seats.size(); offset++)
+            order.add(seats.get((currentIdx + offset) % seats.size()));
+        return order;
+    }
+}
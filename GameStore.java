@@ -0,0 +1,125 @@
+/*
+Purpose: This interface is where a game keeps its named files (users.txt, state.txt, turn.txt, the piles, one hand
+per player, the journal and the session files), so GameManager, GameJournal, Deck, Player, AuthManager and
+SessionTokens never touch the file system themselves.
+FileGameStore is the classic layout, one directory per game; SlotGameStore keeps many games in one
+preallocated store file, a fixed-size slot each, for hosts where tens of thousands of games would run out of inodes.
+A game name "<store file>#<game>" opens a game in a store file, anything else is a game directory.
+session.key is the one secret file; every store keeps it readable by its owner only.
+*/
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public interface GameStore {
+    // Room a game reserves per player where capacity() is bounded: the user, the dealt hand, the session tokens
+    // and the history the player adds during a deal, with some to spare (a dealt seat takes about 150 bytes)
+    int SEAT_BYTES = 512;
+
+    // Name of the game, e.g. for the archive
+    String name();
+
+    // Absolute key of the game: its locks, watches and the archive next to it go by it
+    Path id();
+
+    // Directory holding the game files, or null when the store keeps them elsewhere (then there is no game.bin)
+    Path directory();
+
+    // True if the game has the file
+    boolean exists(String file) throws IOException;
+
+    // Whole file; NoSuchFileException if missing
+    byte[] read(String file) throws IOException;
+
+    // Whole file as lines without their line ends; NoSuchFileException if missing
+    default List<String> readLines(String file) throws IOException {
+        return lines(read(file));
+    }
+
+    // Last n bytes of the file, fewer if it is shorter; empty if missing
+    byte[] tail(String file, int n) throws IOException;
+
+    // Number that changes whenever the file does (0 if missing), so a cached copy can be checked cheaply
+    long stamp(String file) throws IOException;
+
+    // Replaces a file without forcing it to disk
+    void write(String file, List<String> lines) throws IOException;
+
+    // Appends lines to a file, creating it; with force they are on disk when it returns, else once force(file) is called
+    void append(String file, List<String> lines, boolean force) throws IOException;
+
+    // Forces what earlier writes of the file left unforced to disk
+    void force(String file) throws IOException;
+
+    // What force(file) forces, the same for files one fsync covers: the file itself, or the whole store file
+    Path forceKey(String file);
+
+    // Replaces the files so that after a crash either all of them are new or none, forced to disk
+    void replace(Map<String, byte[]> files) throws IOException;
+
+    // Deletes a file if it exists
+    void delete(String file) throws IOException;
+
+    // True if a replace() was interrupted
+    boolean needsRecovery() throws IOException;
+
+    // Finishes an interrupted replace(); needs the exclusive game lock
+    void recover() throws IOException;
+
+    // Bytes the game's files may take together, or Long.MAX_VALUE if only the disk bounds them
+    default long capacity() {
+        return Long.MAX_VALUE;
+    }
+
+    // Lock of the game across threads and processes
+    GameLock lock() throws IOException;
+
+    // Watch telling waiters of this process when the game changes
+    TurnWatch watch();
+
+    // Opens an existing game: a game directory, or "<store file>#<game>"
+    static GameStore open(String game) throws IOException {
+        int hash = game.lastIndexOf('#');
+        if (hash >= 0) return SlotGameStore.open(Paths.get(game.substring(0, hash)), game.substring(hash + 1));
+        Path dir = Paths.get(game);
+        if (!Files.isDirectory(dir)) throw new IllegalArgumentException("Game does not exist");
+        return new FileGameStore(dir);
+    }
+
+    // Creates an empty game; a store file is created too if it does not exist yet
+    static GameStore create(String game) throws IOException {
+        int hash = game.lastIndexOf('#');
+        if (hash >= 0) return SlotGameStore.create(Paths.get(game.substring(0, hash)), game.substring(hash + 1));
+        return FileGameStore.create(Paths.get(game));
+    }
+
+    // Name to open the game called name in root, a directory of game directories or a store file
+    static String locate(Path root, String name) {
+        if (SlotGameStore.isStore(root)) return root + "#" + name;
+        return root.resolve(name).toString();
+    }
+
+    // Lines as file contents, each ended by a newline
+    static byte[] text(List<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String l: lines) sb.append(l).append('\n');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // File contents as lines; a last line without a newline counts too, as in Files.readAllLines
+    static List<String> lines(byte[] data) {
+        List<String> out = new ArrayList<>();
+        String txt = new String(data, StandardCharsets.UTF_8);
+        int start = 0;
+        while (start < txt.length()) {
+            int end = txt.indexOf('\n', start);
+            if (end < 0) end = txt.length();
+            int stop = end > start && txt.charAt(end - 1) == '\r' ? end - 1 : end;
+            out.add(txt.substring(start, stop));
+            start = end + 1;
+        }
+        return out;
+    }
+}
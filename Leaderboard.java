@@ -0,0 +1,253 @@
+/*
+Purpose: This class ranks players over every archived game: games played, wins, penalty points
+(the Player.score() left in their hand when someone else won), turns it took them to win and how they do from seat one.
+The totals are kept in leaderboard.txt in the archive directory with how far into each segment they go,
+so sealing folds in just the new frames. A rescan reads the segments in parallel,
+one fork-join task per segment, and merges the partial totals.
+Players are ranked whenever the totals change, so queries only look the answer up.
+*/
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class Leaderboard {
+    public static final String FILE = "leaderboard.txt"; // Index file in the archive directory
+
+    // Most wins first, then fewest penalty points
+    private static final Comparator<Entry> RANKING = Comparator.comparingLong((Entry e) -> -e.wins)
+        .thenComparingLong(e -> e.penalty).thenComparing(e -> e.name);
+
+    private final Map<String, Entry> entries = new HashMap<>(); // Totals by player name
+    private final Map<String, Long> folded = new TreeMap<>(); // Offset up to which each segment is counted
+    private long games; // Games counted
+    private long firstSeatWins; // Of those, games won from the first seat
+    private final Map<Integer, Long> tables = new TreeMap<>(); // Games by number of players, for seat one's even odds
+    private List<Entry> ranked = Collections.emptyList(); // Entries in rank order
+    private final Map<String, Integer> ranks = new HashMap<>(); // Rank by player name, from 1
+
+    // Totals of one player
+    public static class Entry {
+        public final String name;
+        long games, wins, penalty, winTurns, firstGames, firstWins;
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        void merge(Entry o) {
+            games += o.games;
+            wins += o.wins;
+            penalty += o.penalty;
+            winTurns += o.winTurns;
+            firstGames += o.firstGames;
+            firstWins += o.firstWins;
+        }
+
+        public long games() { return games; }
+        public long wins() { return wins; }
+        public long penalty() { return penalty; } // Sum of the Player.score() left in hand
+        public double winRate() { return games == 0 ? 0 : (double) wins / games; }
+        public double turnsToWin() { return wins == 0 ? 0 : (double) winTurns / wins; } // Own turns per won game
+        public double firstSeatWinRate() { return firstGames == 0 ? 0 : (double) firstWins / firstGames; }
+        public long firstSeatGames() { return firstGames; }
+    }
+
+    // Counts one archived game
+    private void add(GameArchive.Game g) {
+        int n = g.seats.size();
+        int winner = g.winner == null ? -1 : g.seats.indexOf(g.winner);
+        for (int i = 0; i < n; i++) {
+            Entry e = entries.computeIfAbsent(g.seats.get(i), Entry::new);
+            e.games++;
+            e.penalty += g.scores.get(i);
+            if (i == 0) e.firstGames++;
+            if (i == winner) {
+                e.wins++;
+                e.winTurns += (g.turns - 1 - i) / n + 1; // Seat i took turns i+1, i+1+n, ... and won on the last one
+                if (i == 0) e.firstWins++;
+            }
+        }
+        games++;
+        if (winner == 0) firstSeatWins++;
+        tables.merge(n, 1L, Long::sum);
+        folded.put(g.segment, g.end);
+    }
+
+    // Adds the totals of another part of the archive; returns this
+    private Leaderboard merge(Leaderboard o) {
+        for (Entry e: o.entries.values()) entries.computeIfAbsent(e.name, Entry::new).merge(e);
+        for (Map.Entry<String, Long> f: o.folded.entrySet()) folded.merge(f.getKey(), f.getValue(), Math::max);
+        games += o.games;
+        firstSeatWins += o.firstSeatWins;
+        for (Map.Entry<Integer, Long> t: o.tables.entrySet()) tables.merge(t.getKey(), t.getValue(), Long::sum);
+        return this;
+    }
+
+    // Sorts the entries into rank order
+    private void rank() {
+        List<Entry> l = new ArrayList<>(entries.values());
+        l.sort(RANKING);
+        ranked = Collections.unmodifiableList(l);
+        ranks.clear();
+        for (int i = 0; i < l.size(); i++) ranks.put(l.get(i).name, i + 1);
+    }
+
+    // Totals of the games in a segment from the given offset on
+    private static Leaderboard scan(Path segment, long from) {
+        Leaderboard part = new Leaderboard();
+        try (GameArchive a = GameArchive.open(segment, from)) {
+            while (a.hasNext()) part.add(a.next());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return part;
+    }
+
+    // Folds in every game past the offsets already counted, one parallel task per segment that grew; true if any
+    private boolean catchUp(Path dir) throws IOException {
+        List<Path> grown = new ArrayList<>();
+        for (Path seg: GameArchive.segments(dir))
+            if (Files.size(seg) > folded.getOrDefault(seg.getFileName().toString(), 0L)) grown.add(seg);
+        if (grown.isEmpty()) return false;
+        long before = games;
+        grown.parallelStream()
+            .map(seg -> scan(seg, folded.getOrDefault(seg.getFileName().toString(), 0L)))
+            .reduce(Leaderboard::merge)
+            .ifPresent(this::merge);
+        return games != before;
+    }
+
+    // Reads the index of an archive and folds in the games sealed since it was written
+    public static Leaderboard load(Path dir) throws IOException {
+        Leaderboard lb = read(dir.resolve(FILE));
+        if (lb.catchUp(dir)) lb.rank();
+        return lb;
+    }
+
+    // Counts every game in the archive again, in parallel, and rewrites the index; takes the archive lock
+    public static Leaderboard rescan(Path dir) throws IOException {
+        Leaderboard lb = new Leaderboard();
+        Files.createDirectories(dir);
+        GameLock lock = GameLock.of(dir);
+        try (GameLock.Held w = lock.write(); GameLock.Held x = lock.exclusive()) {
+            lb.catchUp(dir);
+            lb.rank();
+            lb.write(dir.resolve(FILE));
+        }
+        return lb;
+    }
+
+    // Folds newly sealed games into the index file; needs the archive lock
+    static void update(Path dir) throws IOException {
+        Leaderboard lb = read(dir.resolve(FILE));
+        if (!lb.catchUp(dir)) return;
+        lb.rank();
+        lb.write(dir.resolve(FILE));
+    }
+
+    // Index file: "GAMES <games> <first seat wins>", "TABLES <players>:<games> ...", a "SEGMENT <file> <offset>" line per segment,
+    // then "PLAYER <name> <games> <wins> <penalty> <win turns> <first seat games> <first seat wins>" in rank order
+    private static Leaderboard read(Path file) throws IOException {
+        Leaderboard lb = new Leaderboard();
+        if (!Files.exists(file)) return lb;
+        List<Entry> order = new ArrayList<>();
+        for (String line: Metrics.readAllLines(file)) {
+            String[] w = line.split(" ");
+            switch (w[0]) {
+                case "GAMES":
+                    lb.games = Long.parseLong(w[1]);
+                    lb.firstSeatWins = Long.parseLong(w[2]);
+                    break;
+                case "TABLES":
+                    for (int i = 1; i < w.length; i++) {
+                        String[] t = w[i].split(":");
+                        lb.tables.put(Integer.parseInt(t[0]), Long.parseLong(t[1]));
+                    }
+                    break;
+                case "SEGMENT":
+                    lb.folded.put(w[1], Long.parseLong(w[2]));
+                    break;
+                case "PLAYER":
+                    Entry e = new Entry(w[1]);
+                    e.games = Long.parseLong(w[2]);
+                    e.wins = Long.parseLong(w[3]);
+                    e.penalty = Long.parseLong(w[4]);
+                    e.winTurns = Long.parseLong(w[5]);
+                    e.firstGames = Long.parseLong(w[6]);
+                    e.firstWins = Long.parseLong(w[7]);
+                    lb.entries.put(e.name, e);
+                    order.add(e);
+                    break;
+                default:
+                    throw new IllegalStateException("Corrupt leaderboard line: " + line);
+            }
+        }
+        lb.ranked = Collections.unmodifiableList(order); // Written in rank order
+        for (int i = 0; i < order.size(); i++) lb.ranks.put(order.get(i).name, i + 1);
+        return lb;
+    }
+
+    // Replaces the index file in one rename
+    private void write(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("GAMES " + games + " " + firstSeatWins);
+        StringBuilder t = new StringBuilder("TABLES");
+        for (Map.Entry<Integer, Long> e: tables.entrySet()) t.append(' ').append(e.getKey()).append(':').append(e.getValue());
+        lines.add(t.toString());
+        for (Map.Entry<String, Long> f: folded.entrySet()) lines.add("SEGMENT " + f.getKey() + " " + f.getValue());
+        for (Entry e: ranked)
+            lines.add("PLAYER " + e.name + " " + e.games + " " + e.wins + " " + e.penalty + " " + e.winTurns
+                + " " + e.firstGames + " " + e.firstWins);
+        Path tmp = file.resolveSibling(FILE + ".tmp");
+        Metrics.write(tmp, lines);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public long games() { return games; }
+
+    // The best n players
+    public List<Entry> top(int n) {
+        return ranked.subList(0, Math.min(n, ranked.size()));
+    }
+
+    // Totals of a player, or null if they never finished an archived game
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    // Rank of a player from 1, or 0 if they never finished an archived game
+    public int rank(String name) {
+        return ranks.getOrDefault(name, 0);
+    }
+
+    // Prints the best n players and how the first seat does overall
+    public void print(int n, PrintStream out) {
+        if (games == 0) {
+            out.println("No archived games");
+            return;
+        }
+        out.printf("%4s %-16s %6s %6s %7s %8s %12s %10s%n", "Rank", "Player", "Games", "Wins", "Win %", "Penalty",
+            "Turns/win", "Seat 1 %");
+        for (Entry e: top(n)) line(e, out);
+        double even = 0; // Seat one's expected wins if every seat were as good
+        for (Map.Entry<Integer, Long> t: tables.entrySet()) even += (double) t.getValue() / t.getKey();
+        out.printf("Seat one won %.2f%% of %d games; even odds at those tables would be %.2f%%%n",
+            100.0 * firstSeatWins / games, games, 100.0 * even / games);
+    }
+
+    // Prints one player's line
+    public void print(String name, PrintStream out) {
+        Entry e = get(name);
+        if (e == null) throw new IllegalArgumentException(name + " has no archived games");
+        out.printf("%4s %-16s %6s %6s %7s %8s %12s %10s%n", "Rank", "Player", "Games", "Wins", "Win %", "Penalty",
+            "Turns/win", "Seat 1 %");
+        line(e, out);
+    }
+
+    private void line(Entry e, PrintStream out) {
+        out.printf("%4d %-16s %6d %6d %7.2f %8d %12.2f %10s%n", rank(e.name), e.name, e.games, e.wins,
+            100 * e.winRate(), e.penalty, e.turnsToWin(),
+            e.firstGames == 0 ? "-" : String.format("%.2f", 100 * e.firstSeatWinRate()));
+    }
+}
@@ -0,0 +1,260 @@
+/*
+Purpose: This class is the load client bundled with GameServer. It sets up tables of bot players in the
+server's game directory or store file (so it must run on the same machine), opens one connection per seat that plays
+whatever --hint suggests as soon as a TURN push names it, and fills up to the requested number of
+connections with idle watchers that only take pushes. It reports connect time, moves per second,
+move latency and pushes received. Each run gets new game names, so runs never share a table.
+A won game is dealt again through an admin connection, so only the server writes the games while it runs.
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadClient {
+    private static final String PASSWORD = "load"; // Of every user of the load tables
+
+    private final String host;
+    private final int port;
+    private final List<Client> clients = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch go = new CountDownLatch(1); // Released once every client is connected
+    private final LongAdder pushes = new LongAdder(), errors = new LongAdder(), finished = new LongAdder();
+    private volatile boolean stopping = false;
+
+    private LoadClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Runs the load test against the server at address (host:port) serving root, for the given number of seconds
+    public static void run(String address, Path root, int tables, int players, int connections, long seconds)
+            throws IOException, InterruptedException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Expected <host>:<port>, got " + address);
+        if (tables < 1 || players < 2) throw new IllegalArgumentException("Need at least one table of two players");
+        new LoadClient(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)))
+            .run(root, tables, players, Math.max(connections, tables * players), seconds);
+    }
+
+    private void run(Path root, int tables, int players, int connections, long seconds)
+            throws IOException, InterruptedException {
+        String prefix = "load" + Long.toString(System.currentTimeMillis(), 36) + "-";
+        List<Table> ts = new ArrayList<>();
+        for (int i = 0; i < tables; i++) ts.add(new Table(prefix + i, GameStore.locate(root, prefix + i), players, i));
+        for (Table t: ts) t.admin = new Client(t, "admin", t.adminToken);
+
+        ExecutorService threads = GameServer.threadPerTask("crazyeights-load");
+        CountDownLatch connected = new CountDownLatch(connections);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            Table t = ts.get(i % tables);
+            int seat = i / tables % players;
+            boolean plays = i < tables * players; // The first connection of each seat plays, the rest watch
+            threads.execute(() -> {
+                Client c = null;
+                try {
+                    c = new Client(t, seat);
+                    clients.add(c);
+                    connected.countDown();
+                    if (plays) c.play();
+                    else c.watch();
+                } catch (IOException | RuntimeException e) {
+                    if (!stopping) {
+                        errors.increment();
+                        System.err.println("Client " + (c == null ? "" : c.user + " ") + "failed: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    if (c == null) connected.countDown();
+                }
+            });
+        }
+        connected.await();
+        double connectSeconds = (System.nanoTime() - t0) / 1e9;
+        System.out.printf("Connected %d clients (%d tables of %d players, %d watching) in %.2f s%n", clients.size(),
+            tables, players, clients.size() - tables * players, connectSeconds);
+
+        long start = System.nanoTime();
+        go.countDown();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        stopping = true;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        synchronized (clients) {
+            for (Client c: clients) c.close(); // Unblocks every read
+        }
+        for (Table t: ts) t.admin.close();
+        threads.shutdown();
+        threads.awaitTermination(10, TimeUnit.SECONDS);
+
+        int moves = 0;
+        for (Client c: clients) moves += c.moves;
+        long[] all = new long[moves];
+        int n = 0;
+        for (Client c: clients) {
+            System.arraycopy(c.latencies, 0, all, n, c.moves);
+            n += c.moves;
+        }
+        Arrays.sort(all, 0, moves);
+        System.out.printf("Moves: %d in %.1f s = %.0f/s; latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n", moves, elapsed,
+            moves / elapsed, ms(all, moves, 0.50), ms(all, moves, 0.99), ms(all, moves, 1.0));
+        System.out.println("Games finished: " + finished.sum() + ", pushes received: " + pushes.sum()
+            + ", errors: " + errors.sum());
+    }
+
+    // Latency at quantile q of the sorted array, in milliseconds
+    private static double ms(long[] sorted, int n, double q) {
+        if (n == 0) return 0;
+        int i = Math.max(0, Math.min(n - 1, (int) Math.ceil(q * n) - 1));
+        return sorted[i] / 1e6;
+    }
+
+    // A load game, created in the server's directory and dealt again whenever it is won
+    private class Table {
+        final String name;
+        final String[] users, tokens;
+        final String adminToken;
+        Client admin; // Connection that deals the next game
+        private long seed; // Seed of the current deal
+        private long restartedAfter = -1; // Version of the last win a restart followed
+
+        Table(String name, String game, int players, long seed) throws IOException {
+            this.name = name;
+            this.seed = seed;
+            AuthManager.Prompt pw = p -> PASSWORD;
+            GameManager.init(game, false, pw);
+            GameManager gm = new GameManager(game);
+            gm.usePrompt(pw);
+            users = new String[players];
+            tokens = new String[players];
+            for (int i = 0; i < players; i++) {
+                users[i] = "p" + i;
+                gm.addUser(users[i]);
+            }
+            gm.start(seed, null);
+            for (int i = 0; i < players; i++) tokens[i] = gm.login(users[i], 24 * 60);
+            adminToken = gm.login("admin", 24 * 60);
+        }
+
+        // Deals a new game after the win at version over, once however many clients see it
+        synchronized void restart(long over) throws IOException {
+            if (over <= restartedAfter) return;
+            restartedAfter = over;
+            admin.request("START " + ++seed);
+        }
+    }
+
+    // One connection to the server, seated at a table as one of its users
+    private class Client {
+        final String user;
+        private final Table table;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private String push; // Push read while waiting for a reply, not handled yet
+        long[] latencies = new long[0]; // Of the moves, in nanoseconds; watchers make none
+        int moves = 0;
+
+        Client(Table table, int seat) throws IOException {
+            this(table, table.users[seat], table.tokens[seat]);
+        }
+
+        Client(Table table, String user, String token) throws IOException {
+            this.table = table;
+            this.user = user;
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 512);
+            out = socket.getOutputStream();
+            request("HELLO " + table.name + " " + user + " " + token);
+        }
+
+        // Sends a command and returns its output lines; an ERR reply throws
+        private List<String> request(String command) throws IOException {
+            out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+            List<String> lines = new ArrayList<>();
+            while (true) {
+                String l = line();
+                if (l.startsWith(". ")) lines.add(l.substring(2));
+                else if (l.equals("OK")) return lines;
+                else if (l.startsWith("ERR ")) throw new IllegalStateException(command + ": " + l.substring(4));
+                else {
+                    push = l;
+                    pushes.increment();
+                }
+            }
+        }
+
+        private String line() throws IOException {
+            String l = GameServer.readLine(in);
+            if (l == null) throw new EOFException("The server closed the connection");
+            return l;
+        }
+
+        // Next push, the one read during a request first
+        private String nextPush() throws IOException {
+            if (push != null) {
+                String p = push;
+                push = null;
+                return p;
+            }
+            String p = line();
+            pushes.increment();
+            return p;
+        }
+
+        // Plays every turn a push gives this user, as --hint suggests, until the run stops
+        void play() throws IOException, InterruptedException {
+            go.await();
+            long handled = -1; // Version of the last push acted on
+            while (!stopping) {
+                String[] w = nextPush().split(" ");
+                long version = Long.parseLong(w[1]);
+                if (version <= handled) continue; // A repeat, e.g. the one sent on joining
+                if (w[0].equals("OVER")) {
+                    handled = version;
+                    if (w[2].equals(user)) {
+                        finished.increment();
+                        table.restart(version);
+                    }
+                    continue;
+                }
+                if (!w[2].equals(user)) continue;
+                handled = version;
+                String move = null;
+                for (String l: request("HINT")) {
+                    if (l.startsWith("Hint: play ")) move = "PLAY " + l.substring(11);
+                    else if (l.equals("Hint: draw")) move = "DRAW";
+                    else if (l.equals("Hint: pass")) move = "PASS";
+                }
+                if (move == null) continue; // Already over or someone else's turn again
+                long t0 = System.nanoTime();
+                try {
+                    request(move);
+                } catch (IllegalStateException e) {
+                    if (!stopping) errors.increment();
+                    continue;
+                }
+                if (moves == latencies.length) latencies = Arrays.copyOf(latencies, Math.max(256, moves * 2));
+                latencies[moves++] = System.nanoTime() - t0;
+            }
+        }
+
+        // Only takes pushes until the run stops
+        void watch() throws IOException {
+            while (!stopping) nextPush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+Purpose: This class times every GameManager command phase by phase (auth, lock, load, rules, persist, output)
+and counts the bytes and file operations each command does.
+Latencies go into log-linear histograms per command and phase (about 12% precision, fixed memory),
+so p50 and p99 stay cheap to keep under load.
+The numbers are published over JMX (crazyeights:type=Command,name=<command>) and can be dumped to a file periodically.
+*/
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+public class Metrics {
+    // Phases of a command, in the order they usually run
+    public enum Phase { AUTH, LOCK, LOAD, RULES, PERSIST, OUTPUT }
+
+    private static final Map<String, CommandStats> COMMANDS = new ConcurrentSkipListMap<>(); // By command name
+    private static final ThreadLocal<Command> CURRENT = new ThreadLocal<>(); // Command running on this thread
+    private static volatile boolean jmx = false; // True once the MBeans are being registered
+
+    // Starts timing a command on this thread; close() records it
+    public static Command start(String name) {
+        Command c = new Command(stats(name), CURRENT.get());
+        CURRENT.set(c);
+        return c;
+    }
+
+    // Ends the current phase of this thread's command; the time since the previous lap counts towards it
+    public static void lap(Phase phase) {
+        Command c = CURRENT.get();
+        if (c != null) c.lap(phase);
+    }
+
+    // Counts a file read of the given size for this thread's command
+    public static void read(long bytes) {
+        Command c = CURRENT.get();
+        if (c != null) {
+            c.bytesRead += bytes;
+            c.fileOps++;
+        }
+    }
+
+    // Counts a file write (or fsync, with 0 bytes) for this thread's command
+    public static void wrote(long bytes) {
+        Command c = CURRENT.get();
+        if (c != null) {
+            c.bytesWritten += bytes;
+            c.fileOps++;
+        }
+    }
+
+    // Files.readAllLines, counted in the bytes actually read
+    public static List<String> readAllLines(Path f) throws IOException {
+        byte[] data = Files.readAllBytes(f);
+        read(data.length);
+        return GameStore.lines(data);
+    }
+
+    // Files.write of lines, each ended by a newline, counted in the bytes actually written
+    public static void write(Path f, List<String> lines) throws IOException {
+        byte[] data = GameStore.text(lines);
+        Files.write(f, data);
+        wrote(data.length);
+    }
+
+    private static CommandStats stats(String name) {
+        CommandStats s = COMMANDS.get(name);
+        if (s != null) return s;
+        return COMMANDS.computeIfAbsent(name, n -> {
+            CommandStats created = new CommandStats(n);
+            if (jmx) created.register();
+            return created;
+        });
+    }
+
+    // Timing of one running command
+    public static class Command implements AutoCloseable {
+        private final CommandStats stats;
+        private final Command outer; // Command this one runs inside of, if any
+        private final long start = System.nanoTime();
+        private long last = start;
+        private final long[] phaseNanos = new long[Phase.values().length];
+        private int touched; // Bit per phase that was lapped
+        long bytesRead, bytesWritten, fileOps;
+        private boolean failed;
+
+        private Command(CommandStats stats, Command outer) {
+            this.stats = stats;
+            this.outer = outer;
+        }
+
+        void lap(Phase p) {
+            long now = System.nanoTime();
+            phaseNanos[p.ordinal()] += now - last;
+            touched |= 1 << p.ordinal();
+            last = now;
+        }
+
+        // Marks the command as failed; it is still timed
+        public void failed() { failed = true; }
+
+        @Override public void close() {
+            lap(Phase.OUTPUT); // Whatever ran after the last lap
+            for (Phase p: Phase.values())
+                if ((touched & 1 << p.ordinal()) != 0) stats.phases[p.ordinal()].record(phaseNanos[p.ordinal()]);
+            stats.total.record(last - start);
+            stats.count.increment();
+            if (failed) stats.errors.increment();
+            stats.bytesRead.add(bytesRead);
+            stats.bytesWritten.add(bytesWritten);
+            stats.fileOps.add(fileOps);
+            CURRENT.set(outer);
+        }
+    }
+
+    // Log-linear latency histogram in nanoseconds: 8 linear buckets per power of two
+    static class Histogram {
+        private static final int SUB = 8;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+
+        void record(long nanos) {
+            counts.incrementAndGet(index(Math.max(nanos, 0)));
+        }
+
+        private static int index(long v) {
+            if (v < SUB) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v); // At least 3
+            int sub = (int) (v >>> (exp - 3)) & (SUB - 1);
+            return (exp - 2) * SUB + sub;
+        }
+
+        // Smallest value of bucket i
+        private static long lower(int i) {
+            if (i < SUB) return i;
+            int exp = i / SUB + 2;
+            return (long) (SUB + i % SUB) << (exp - 3);
+        }
+
+        long count() {
+            long n = 0;
+            for (int i = 0; i < counts.length(); i++) n += counts.get(i);
+            return n;
+        }
+
+        // Value at the given quantile (0 to 1), as the middle of its bucket; 0 when empty
+        long percentile(double q) {
+            long n = count();
+            if (n == 0) return 0;
+            long want = Math.max(1, (long) Math.ceil(q * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= want) return (lower(i) + lower(i + 1)) / 2;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // Everything recorded for one command name
+    static class CommandStats implements DynamicMBean {
+        final String name;
+        final Histogram total = new Histogram();
+        final Histogram[] phases = new Histogram[Phase.values().length];
+        final LongAdder count = new LongAdder(), errors = new LongAdder();
+        final LongAdder bytesRead = new LongAdder(), bytesWritten = new LongAdder(), fileOps = new LongAdder();
+
+        CommandStats(String name) {
+            this.name = name;
+            for (int i = 0; i < phases.length; i++) phases[i] = new Histogram();
+        }
+
+        // Attribute values by name: counters, then p50/p99 in microseconds per phase and for the whole command
+        Map<String, Object> values() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("count", count.sum());
+            m.put("errors", errors.sum());
+            m.put("bytesRead", bytesRead.sum());
+            m.put("bytesWritten", bytesWritten.sum());
+            m.put("fileOps", fileOps.sum());
+            m.put("totalP50Micros", total.percentile(0.5) / 1000);
+            m.put("totalP99Micros", total.percentile(0.99) / 1000);
+            for (Phase p: Phase.values()) {
+                Histogram h = phases[p.ordinal()];
+                String key = p.name().toLowerCase();
+                m.put(key + "P50Micros", h.percentile(0.5) / 1000);
+                m.put(key + "P99Micros", h.percentile(0.99) / 1000);
+            }
+            return m;
+        }
+
+        void register() {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("crazyeights:type=Command,name=" + ObjectName.quote(name)));
+            } catch (InstanceAlreadyExistsException e) {
+                // Registered by an earlier call
+            } catch (JMException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object v = values().get(attribute);
+            if (v == null) throw new AttributeNotFoundException(attribute);
+            return v;
+        }
+
+        @Override public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> m = values();
+            AttributeList list = new AttributeList();
+            for (String a: attributes)
+                if (m.containsKey(a)) list.add(new Attribute(a, m.get(a)));
+            return list;
+        }
+
+        @Override public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("No operations");
+        }
+
+        @Override public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for (String a: values().keySet())
+                attrs.add(new MBeanAttributeInfo(a, "long", a, true, false, false));
+            return new MBeanInfo(getClass().getName(), "Latency and I/O of the " + name + " command",
+                attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+
+    // Publishes every command, present and future, on the platform MBean server
+    public static void registerMBeans() {
+        jmx = true;
+        for (CommandStats s: COMMANDS.values()) s.register();
+    }
+
+    // Writes a table of all commands: count, errors, I/O and p50/p99 per phase in microseconds
+    public static void dump(Path file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# " + new Date());
+        StringBuilder head = new StringBuilder(String.format("%-10s %8s %6s %10s %10s %8s %13s", "command", "count",
+            "errors", "read", "written", "fileops", "total"));
+        for (Phase p: Phase.values()) head.append(String.format(" %13s", p.name().toLowerCase()));
+        lines.add(head.toString());
+        StringBuilder units = new StringBuilder(String.format("%-10s %8s %6s %10s %10s %8s %13s", "", "", "",
+            "bytes", "bytes", "", "p50/p99 us"));
+        for (int i = 0; i < Phase.values().length; i++) units.append(String.format(" %13s", "p50/p99 us"));
+        lines.add(units.toString());
+        for (CommandStats s: COMMANDS.values()) {
+            StringBuilder sb = new StringBuilder(String.format("%-10s %8d %6d %10d %10d %8d %13s", s.name, s.count.sum(),
+                s.errors.sum(), s.bytesRead.sum(), s.bytesWritten.sum(), s.fileOps.sum(), pair(s.total)));
+            for (Histogram h: s.phases) sb.append(String.format(" %13s", pair(h)));
+            lines.add(sb.toString());
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, lines);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String pair(Histogram h) {
+        if (h.count() == 0) return "-";
+        return h.percentile(0.5) / 1000 + "/" + h.percentile(0.99) / 1000;
+    }
+
+    // Dumps the metrics to file every given number of seconds, and once more when the JVM exits
+    public static void dumpEvery(Path file, long seconds) {
+        ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "crazyeights-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        Runnable dump = () -> {
+            try {
+                dump(file);
+            } catch (IOException e) {
+                System.err.println("Metrics dump failed: " + e.getMessage());
+            }
+        };
+        ses.scheduleAtFixedRate(dump, seconds, seconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(dump, "crazyeights-metrics-exit"));
+    }
+}
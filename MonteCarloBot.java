@@ -0,0 +1,315 @@
+/*
+Purpose: This class is a bot that searches, with information-set Monte Carlo tree search over its own move.
+Every iteration deals the cards it cannot see (whatever is neither in its hand nor in the discard pile) into the other
+hands and the draw pile at random, so each playout is one world consistent with what the bot knows.
+It then picks one of its moves by UCB1 and plays the game out with random legal moves, eights last, under the Card.matches rules,
+reshuffling the discard pile into the draw pile as Deck does. It plays the move that was tried most.
+The search runs until the time budget is spent, or for a fixed number of playouts for reproducible runs.
+Called from a single thread, it forks a helper per core onto the common ForkJoinPool; each worker keeps its own
+statistics and they are added up at the end. Called from a ForkJoinPool (a tournament round), or while the common pool is busy (a parallel --simulate),
+the cores are already busy with other bots, so it searches on the calling thread alone.
+A worker reuses one Playout of int arrays and bitsets, so a playout allocates nothing and copying a world is
+a few array fills. Without a View (e.g. for --hint) it plays like GREEDY.
+*/
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MonteCarloBot implements BotStrategy {
+    public static final long DEFAULT_BUDGET_MS = 20; // Search time per move of plain "mcts"
+    private static final int MAX_TURNS = 1000; // A playout that runs longer counts as lost
+    private static final double EXPLORE = 0.7; // UCB1 exploration weight; rewards are 0 or 1
+    private static final int CHECK_EVERY = 16; // Playouts between looks at the clock
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ThreadLocal<Playout> PLAYOUTS = ThreadLocal.withInitial(Playout::new);
+
+    private final long budgetNanos; // Search time per move, or 0 for a fixed number of playouts
+    private final long playouts; // Playouts per move without a time budget
+    private final LongAdder searched = new LongAdder(), played = new LongAdder(), searchNanos = new LongAdder();
+    private final LongAdder workerMoves = new LongAdder(); // Workers summed over the searched moves
+
+    // A bot that searches for budgetMillis per move, or (with budgetMillis 0) runs the given playouts per move
+    public MonteCarloBot(long budgetMillis, long playouts) {
+        if ((budgetMillis > 0) == (playouts > 0)) throw new IllegalArgumentException("Give mcts a time budget or a playout count");
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.playouts = playouts;
+    }
+
+    @Override public boolean seesTable() {
+        return true;
+    }
+
+    @Override public Card choose(Player self, Card top, long playable, boolean hasDrawn, SplittableRandom rnd) {
+        return BotStrategy.GREEDY.choose(self, top, playable, hasDrawn, rnd);
+    }
+
+    @Override public Card choose(View table, Player self, Card top, long playable, boolean hasDrawn, SplittableRandom rnd) {
+        long start = System.nanoTime();
+        Search s = new Search(table, self, top, playable, hasDrawn);
+        if (s.actions.length == 1) return s.card(0); // Nothing to weigh
+        if (rnd == null) rnd = new SplittableRandom();
+        long deadline = budgetNanos > 0 ? start + budgetNanos : Long.MAX_VALUE;
+        // A caller in a ForkJoinPool, or next to a busy common pool (e.g. the thread that runs a parallel stream),
+        // is one of many running at once: helpers would only queue behind the other bots
+        boolean alone = !ForkJoinTask.inForkJoinPool() && ForkJoinPool.commonPool().getActiveThreadCount() == 0;
+        int workers = alone ? THREADS : 1;
+        List<ForkJoinTask<Result>> helpers = new ArrayList<>();
+        for (int w = 1; w < workers; w++) {
+            SplittableRandom r = rnd.split();
+            long limit = budgetNanos > 0 ? Long.MAX_VALUE : playouts / workers;
+            helpers.add(ForkJoinTask.adapt(() -> search(s, r, deadline, limit, 0)).fork()); // Onto the common pool
+        }
+        Result total = search(s, rnd.split(), deadline,
+            budgetNanos > 0 ? Long.MAX_VALUE : playouts - playouts / workers * (workers - 1), s.actions.length);
+        for (ForkJoinTask<Result> f: helpers) total.add(f.join()); // One that starts past the deadline plays nothing
+        int best = 0;
+        for (int a = 1; a < s.actions.length; a++)
+            if (total.visits[a] > total.visits[best]
+                    || total.visits[a] == total.visits[best] && total.wins[a] > total.wins[best]) best = a;
+        searched.increment();
+        workerMoves.add(workers);
+        played.add(total.playouts);
+        searchNanos.add(System.nanoTime() - start);
+        return s.card(best);
+    }
+
+    // Runs playouts until the deadline or the limit, trying every move at least minimum times in all
+    private static Result search(Search s, SplittableRandom rnd, long deadline, long limit, int minimum) {
+        Playout p = PLAYOUTS.get();
+        p.prepare(s);
+        Result r = new Result(s.actions.length);
+        for (long n = 0; n < limit; n++) {
+            if (n % CHECK_EVERY == 0 && n >= minimum && System.nanoTime() >= deadline) break;
+            int a = r.select();
+            r.visits[a]++;
+            r.wins[a] += p.play(s, a, rnd) ? 1 : 0;
+            r.playouts++;
+        }
+        return r;
+    }
+
+    // Prints how much the bot searched: moves, playouts per move and playouts per second of search
+    public void report(String name, PrintStream out) {
+        long moves = searched.sum();
+        if (moves == 0) return;
+        out.printf("%s searched %d moves: %.0f playouts per move, %.0f playouts/s on %.1f threads per move%n", name, moves,
+            (double) played.sum() / moves, played.sum() / (searchNanos.sum() / 1e9), (double) workerMoves.sum() / moves);
+    }
+
+    // Visits and wins of each move of the bot
+    private static final class Result {
+        final long[] visits;
+        final double[] wins;
+        long playouts;
+
+        Result(int actions) {
+            visits = new long[actions];
+            wins = new double[actions];
+        }
+
+        // UCB1: an untried move first, else the best mean plus the exploration bonus
+        int select() {
+            int best = 0;
+            double bestValue = -1, log = Math.log(Math.max(1, playouts));
+            for (int a = 0; a < visits.length; a++) {
+                if (visits[a] == 0) return a;
+                double v = wins[a] / visits[a] + EXPLORE * Math.sqrt(log / visits[a]);
+                if (v > bestValue) {
+                    best = a;
+                    bestValue = v;
+                }
+            }
+            return best;
+        }
+
+        void add(Result o) {
+            for (int a = 0; a < visits.length; a++) {
+                visits[a] += o.visits[a];
+                wins[a] += o.wins[a];
+            }
+            playouts += o.playouts;
+        }
+    }
+
+    // What the bot knows, shared read-only by the workers: its hand, the discard pile and the cards it cannot see
+    private static final class Search {
+        final int seats;
+        final int[] handSizes; // In turn order, the bot's first
+        final int drawCount;
+        final int[] own = new int[Card.COUNT]; // Copies of each card in the bot's hand
+        final long ownMask;
+        final int ownSize;
+        final int[] discardPile; // Card ordinals, top last
+        final int[] hidden; // Card ordinals of the other hands and the draw pile, in no order
+        final int shoe; // Cards in the game
+        final int[] actions; // Distinct playable cards, then -1 to draw (before drawing) or pass (after) if allowed
+        final boolean hasDrawn;
+
+        Search(View table, Player self, Card top, long playable, boolean hasDrawn) {
+            this.hasDrawn = hasDrawn;
+            seats = table.handSizes.length;
+            handSizes = table.handSizes;
+            drawCount = table.drawCount;
+            for (Card c: self.getHand()) own[c.ordinal()]++;
+            ownMask = self.handMask();
+            ownSize = self.handSize();
+            int discardCount = 0;
+            for (int n: table.discards) discardCount += n;
+            int cards = discardCount + drawCount;
+            for (int n: handSizes) cards += n;
+            int decks = Math.max(1, (cards + Card.COUNT - 1) / Card.COUNT);
+            shoe = decks * Card.COUNT;
+            discardPile = new int[discardCount];
+            int k = 0;
+            for (int o = 0; o < Card.COUNT; o++)
+                for (int i = o == top.ordinal() ? 1 : 0; i < table.discards[o]; i++) discardPile[k++] = o;
+            if (k < discardCount) discardPile[k] = top.ordinal(); // The top goes last
+            int[] h = new int[shoe];
+            int n = 0;
+            for (int o = 0; o < Card.COUNT; o++)
+                for (int i = decks - own[o] - table.discards[o]; i > 0; i--) h[n++] = o;
+            hidden = Arrays.copyOf(h, n);
+            boolean canDraw = drawCount > 0 || discardCount > 1;
+            actions = new int[Long.bitCount(playable) + (hasDrawn || canDraw ? 1 : 0)];
+            int a = 0;
+            for (long m = playable; m != 0; m &= m - 1) actions[a++] = Long.numberOfTrailingZeros(m);
+            if (a < actions.length) actions[a] = -1;
+        }
+
+        // The card of a move, or null to draw or pass
+        Card card(int action) {
+            return actions[action] < 0 ? null : Card.of(actions[action]);
+        }
+    }
+
+    // One world to play out, in arrays reused from playout to playout
+    private static final class Playout {
+        private int seats;
+        private long[] masks = new long[0]; // Distinct cards of each hand
+        private int[] counts = new int[0]; // Copies of card o in hand s at s * Card.COUNT + o
+        private int[] sizes = new int[0];
+        private int[] draw = new int[0], discard = new int[0], hidden = new int[0];
+        private int drawHead, drawTail, discardSize;
+
+        // Sizes the arrays for a search and takes its hidden cards, which every deal shuffles further
+        void prepare(Search s) {
+            seats = s.seats;
+            if (masks.length < seats) {
+                masks = new long[seats];
+                sizes = new int[seats];
+                counts = new int[seats * Card.COUNT];
+            }
+            if (draw.length < s.shoe) {
+                draw = new int[s.shoe];
+                discard = new int[s.shoe];
+                hidden = new int[s.shoe];
+            }
+            System.arraycopy(s.hidden, 0, hidden, 0, s.hidden.length);
+        }
+
+        // Deals a world, makes the bot's move and plays on at random; true if the bot won
+        boolean play(Search s, int action, SplittableRandom rnd) {
+            deal(s, rnd);
+            int card = s.actions[action];
+            if (card >= 0) {
+                if (play(0, card)) return true;
+            } else if (!s.hasDrawn && canDraw()) { // Draw, then play on like everyone else
+                take(0, rnd);
+                long m = masks[0] & Card.matchMask(top());
+                if (m != 0 && play(0, pick(m, rnd))) return true;
+            }
+            int stuck = 0; // Turns in a row nobody could draw or play
+            for (int turn = 0, seat = 1 % seats; turn < MAX_TURNS; turn++, seat = (seat + 1) % seats) {
+                long m = masks[seat] & Card.matchMask(top());
+                if (m == 0) {
+                    if (!canDraw()) {
+                        if (++stuck > seats) return false;
+                        continue;
+                    }
+                    take(seat, rnd);
+                    m = masks[seat] & Card.matchMask(top());
+                    if (m == 0) continue; // Pass
+                }
+                stuck = 0;
+                if (play(seat, pick(m, rnd))) return seat == 0;
+            }
+            return false;
+        }
+
+        // The bot's hand as it is; the hidden cards shuffled into the other hands, then the draw pile
+        private void deal(Search s, SplittableRandom rnd) {
+            Arrays.fill(counts, 0, seats * Card.COUNT, 0);
+            Arrays.fill(masks, 0, seats, 0);
+            System.arraycopy(s.own, 0, counts, 0, Card.COUNT);
+            masks[0] = s.ownMask;
+            sizes[0] = s.ownSize;
+            int n = s.hidden.length;
+            for (int i = n - 1; i > 0; i--) {
+                int j = rnd.nextInt(i + 1);
+                int t = hidden[i];
+                hidden[i] = hidden[j];
+                hidden[j] = t;
+            }
+            int k = 0;
+            for (int seat = 1; seat < seats; seat++) {
+                sizes[seat] = 0;
+                for (int i = 0; i < s.handSizes[seat] && k < n; i++) add(seat, hidden[k++]);
+            }
+            drawHead = 0;
+            drawTail = Math.min(s.drawCount, n - k);
+            System.arraycopy(hidden, k, draw, 0, drawTail);
+            discardSize = s.discardPile.length;
+            System.arraycopy(s.discardPile, 0, discard, 0, discardSize);
+        }
+
+        private int top() {
+            return discard[discardSize - 1];
+        }
+
+        private boolean canDraw() {
+            return drawHead < drawTail || discardSize > 1;
+        }
+
+        // Draws a card into a hand, reshuffling the discard pile under its top card first if the draw pile is empty
+        private void take(int seat, SplittableRandom rnd) {
+            if (drawHead == drawTail) {
+                int n = discardSize - 1;
+                System.arraycopy(discard, 0, draw, 0, n);
+                for (int i = n - 1; i > 0; i--) {
+                    int j = rnd.nextInt(i + 1);
+                    int t = draw[i];
+                    draw[i] = draw[j];
+                    draw[j] = t;
+                }
+                drawHead = 0;
+                drawTail = n;
+                discard[0] = discard[discardSize - 1];
+                discardSize = 1;
+            }
+            add(seat, draw[drawHead++]);
+        }
+
+        private void add(int seat, int card) {
+            counts[seat * Card.COUNT + card]++;
+            masks[seat] |= 1L << card;
+            sizes[seat]++;
+        }
+
+        // Moves a card from a hand onto the discard pile; true if the hand is now empty
+        private boolean play(int seat, int card) {
+            if (--counts[seat * Card.COUNT + card] == 0) masks[seat] &= ~(1L << card);
+            discard[discardSize++] = card;
+            return --sizes[seat] == 0;
+        }
+
+        // A random card of a non-empty bitset, keeping eights, which match anything, for when nothing else does
+        private static int pick(long m, SplittableRandom rnd) {
+            if ((m & ~Card.EIGHTS) != 0) m &= ~Card.EIGHTS;
+            for (int k = rnd.nextInt(Long.bitCount(m)); k > 0; k--) m &= m - 1;
+            return Long.numberOfTrailingZeros(m);
+        }
+    }
+}
@@ -9,82 +9,203 @@ All the comments I wrote were put for me to keep track while developing, they ar
 */
 
 import java.util.*;
-import java.nio.file.*;
 import java.io.*;
 
 public class Player {
     private final String name; // The name of the player
-    private final Path handFile; // Path to the file storing the player's hand
-    private final List<Card> hand = new ArrayList<>(); // List to store the player's hand of cards
+    private final GameStore store; // Store holding the player's hand file, or null
+    private final String handFile; // Name of the file storing the player's hand
+    private long hand; // Cards held at least once, as a bitset of card ordinals
+    private short[] extra; // Copies held beyond the first, by ordinal; null until a multi-deck shoe deals a duplicate
+    private int extras; // Sum of extra
+    private boolean handRead; // False until the hand file has been read
+    private int[] replayed = new int[0]; // Draws (ordinal + 1) and plays (-ordinal - 1) replayed before the file was read
+    private int replayedCount;
 
-    // Constructor to initialize the player with a name and directory for saving the hand
-    public Player(String name, Path dir) throws IOException {
+    // Constructor to initialize the player with a name and the game store for saving the hand.
+    // The hand file is only read when the hand is first needed, so commands that never look at it skip it.
+    public Player(String name, GameStore store) {
         if ("admin".equalsIgnoreCase(name)) throw new IllegalArgumentException("'admin' not allowed"); // Restrict 'admin' as a player name
         this.name = name;
-        this.handFile = dir.resolve(name + ".txt"); // Resolve the file path for the player's hand
-        if (Files.exists(handFile)) loadHand(); // Load the hand from the file if it exists
+        this.store = store;
+        this.handFile = name + ".txt"; // Name of the file for the player's hand
+    }
+
+    // Constructor for a player that only lives in memory, e.g. in a simulation; it has no hand file
+    public Player(String name) {
+        this.name = name;
+        this.store = null;
+        this.handFile = null;
+        this.handRead = true;
     }
 
     // Getter for the player's name
     public String getName() { return name; }
 
-    // Getter for the player's hand (returns an unmodifiable view)
-    public List<Card> getHand() { return Collections.unmodifiableList(hand); }
+    // Getter for the player's hand, in card order with duplicates next to each other (a new unmodifiable list)
+    public List<Card> getHand() {
+        long h = hand();
+        if (extras == 0) return Card.listOf(h);
+        List<Card> out = new ArrayList<>(handSize());
+        for (long m = h; m != 0; m &= m - 1) {
+            int o = Long.numberOfTrailingZeros(m);
+            for (int i = 0; i <= extra[o]; i++) out.add(Card.of(o));
+        }
+        return Collections.unmodifiableList(out);
+    }
+
+    // The distinct cards in the hand as a bitset of card ordinals
+    public long handMask() { return hand(); }
+
+    // Number of cards in the hand, duplicates included
+    public int handSize() { return Long.bitCount(hand()) + extras; }
+
+    // Checks if the player holds the card
+    public boolean hasCard(Card c) {
+        return (hand() >>> c.ordinal() & 1) != 0;
+    }
+
+    // Cards in the hand that may be played on the given top discard, as a bitset
+    public long playableMask(Card top) {
+        return hand() & Card.matchMask(top.ordinal());
+    }
 
-    // Deals the initial set of cards to the player
+    // Deals the initial set of cards to the player; the caller writes the first snapshot
     public void dealInitial(List<Card> cards) {
-        hand.clear(); // Clear the current hand
-        hand.addAll(cards); // Add the new cards to the hand
-        saveHand(); // Save the updated hand to the file
+        restoreHand(cards);
+    }
+
+    // Replaces the hand with cards read from a snapshot, without writing the hand file
+    public void restoreHand(Collection<Card> cards) {
+        clear();
+        for (Card c: cards) add(c.ordinal()); // Add the new cards to the hand
+        handRead = true; // The file no longer matters
+        replayedCount = 0;
     }
 
     // Saves the player's hand to the file
     public void saveHand() {
+        if (store == null) throw new IllegalStateException("Player " + name + " has no hand file");
         try {
-            List<String> out = new ArrayList<>();
-            for (Card c: hand) out.add(c.toString()); // Convert each card to a string
-            Files.write(handFile, out); // Write the strings to the file
+            store.write(handFile, handLines()); // Write the strings to the file
         } catch (IOException e) { 
             throw new RuntimeException(e); // Wrap and rethrow any IOException
         }
     }
 
-    // Loads the player's hand from the file
-    private void loadHand() throws IOException {
-        hand.clear(); // Clear the current hand
-        for (String l: Files.readAllLines(handFile)) 
-            hand.add(Card.fromString(l.trim())); // Convert each line to a Card and add to the hand
+    // Returns the contents of the hand file without writing it
+    public List<String> handLines() {
+        List<String> out = new ArrayList<>();
+        for (Card c: getHand()) out.add(c.toString()); // Convert each card to a string
+        return out;
     }
 
-    // Plays a card from the player's hand
+    // Reads the hand file now if it has not been read yet
+    public void readHand() throws IOException {
+        if (handRead) return;
+        clear();
+        if (store.exists(handFile)) // No file means no cards yet
+            for (String l: store.readLines(handFile))
+                add(Card.ordinalOf(l.trim())); // Convert each line to a card ordinal and add it to the hand
+        for (int i = 0; i < replayedCount; i++) {
+            int op = replayed[i];
+            if (op > 0) add(op - 1);
+            else remove(-op - 1);
+        }
+        replayedCount = 0;
+        handRead = true;
+    }
+
+    // The hand, read from the file on first use
+    private long hand() {
+        try {
+            readHand();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return hand;
+    }
+
+    private void clear() {
+        hand = 0;
+        extra = null;
+        extras = 0;
+    }
+
+    // Adds one copy of a card
+    private void add(int o) {
+        long bit = 1L << o;
+        if ((hand & bit) == 0) {
+            hand |= bit;
+            return;
+        }
+        if (extra == null) extra = new short[Card.COUNT];
+        extra[o]++;
+        extras++;
+    }
+
+    // Removes one copy of a card the hand holds
+    private void remove(int o) {
+        if (extra != null && extra[o] > 0) {
+            extra[o]--;
+            extras--;
+            return;
+        }
+        hand &= ~(1L << o);
+    }
+
+    // Plays a card from the player's hand; the caller journals the move
     public void play(Card c, Deck deck) {
-        if (!hand.contains(c)) throw new IllegalArgumentException("You don't have that card"); // Ensure the player has the card
+        if (!hasCard(c)) throw new IllegalArgumentException("You don't have that card"); // Ensure the player has the card
         if (!c.matches(deck.topDiscard())) throw new IllegalArgumentException("You can't discard that card"); // Ensure the card matches the discard pile
-        hand.remove(c); // Remove the card from the hand
+        remove(c.ordinal()); // Remove one copy from the hand
         deck.play(c); // Add the card to the discard pile
-        saveHand(); // Save the updated hand to the file
     }
 
-    // Draws a card from the deck and adds it to the player's hand
+    // Draws a card from the deck and adds it to the player's hand; the caller journals the move
     public Card draw(Deck deck) {
         Card c = deck.draw(); // Draw a card from the deck
-        hand.add(c); // Add the card to the hand
-        saveHand(); // Save the updated hand to the file
+        hand();
+        add(c.ordinal()); // Add the card to the hand
         return c; // Return the drawn card
     }
 
+    // Replays a journaled play without checking it, so an unread hand file stays unread
+    public void replayPlay(Card c, Deck deck) {
+        if (handRead) remove(c.ordinal());
+        else replayed(-c.ordinal() - 1);
+        deck.play(c);
+    }
+
+    // Replays a journaled draw of the given card, so an unread hand file stays unread
+    public void replayDraw(Card c, Deck deck) {
+        deck.replayDraw(c);
+        if (handRead) add(c.ordinal());
+        else replayed(c.ordinal() + 1);
+    }
+
+    private void replayed(int op) {
+        if (replayedCount == replayed.length) replayed = Arrays.copyOf(replayed, Math.max(8, replayedCount * 2));
+        replayed[replayedCount++] = op;
+    }
+
     // Checks if the player has won (i.e., their hand is empty)
     public boolean hasWon() {
-        return hand.isEmpty();
+        return hand() == 0;
     }
 
     // Calculates the score of the player's hand
     public int score() {
-        return hand.stream().mapToInt(c -> {
+        int sum = 0;
+        for (long m = hand(); m != 0; m &= m - 1) {
+            int o = Long.numberOfTrailingZeros(m);
+            Card c = Card.of(o);
+            int copies = extras == 0 ? 1 : 1 + extra[o];
             switch (c.getRank()) {
-                case J: case Q: case K: return 10; // Face cards are worth 10 points
-                default: return c.getRank().ordinal() + 1; // Other cards are worth their rank value
+                case J: case Q: case K: sum += 10 * copies; break; // Face cards are worth 10 points
+                default: sum += (c.getRank().ordinal() + 1) * copies; // Other cards are worth their rank value
             }
-        }).sum(); // Sum up the points for all cards in the hand
+        }
+        return sum; // Sum up the points for all cards in the hand
     }
 }
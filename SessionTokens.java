@@ -0,0 +1,224 @@
+/*
+Purpose: This class issues and checks session tokens, so a logged-in user does not type a password
+(and the CLI does not hash it) on every command.
+A token is "<user>.<expiry>.<epoch>.<signature>", signed with HMAC-SHA256 and a random key kept in the game's session.key.
+The HMAC is computed over MessageDigest rather than javax.crypto.Mac: same signature, but a CLI command
+does not pay for starting the JCE provider framework.
+Revoking a user bumps their epoch in sessions.txt, which invalidates every token issued before.
+Tokens that passed the HMAC check are cached, so a warm daemon only compares numbers afterwards.
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SessionTokens {
+    // Lifetime of a token when --ttl is not given
+    public static final long DEFAULT_TTL_MINUTES = 12 * 60;
+    // Verified tokens kept before the cache is cleared
+    private static final int CACHE_LIMIT = 1024;
+
+    private static final String KEY_FILE = "session.key"; // Random HMAC key of the game
+    private static final String SESSIONS_FILE = "sessions.txt"; // "user,epoch" lines written by revoke
+
+    private final GameStore store; // Where the game keeps both
+    private final Set<String> verified = ConcurrentHashMap.newKeySet(); // Tokens whose signature was checked
+    private volatile Map<String, Long> epochs = Collections.emptyMap(); // Current epoch per user
+    private volatile long epochsStamp = -1; // Stamp of sessions.txt when epochs was read
+    private static final int BLOCK = 64; // SHA-256 block size in bytes
+
+    private volatile byte[][] pads; // Key XOR the inner and outer HMAC pads; loaded on first use
+    private final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> digest("SHA-256")); // Not thread-safe
+
+    public SessionTokens(GameStore store) {
+        this.store = store;
+    }
+
+    // Issues a token for a user who has just proven their password; needs the exclusive game lock
+    public String issue(String user, long ttlMinutes) throws IOException {
+        if (ttlMinutes <= 0) throw new IllegalArgumentException("--ttl must be positive");
+        long expiry = System.currentTimeMillis() / 1000 + ttlMinutes * 60;
+        String body = user + "." + expiry + "." + epoch(user);
+        return body + "." + sign(body, true);
+    }
+
+    // Checks that the token belongs to user, is unexpired and was not revoked
+    public void require(String user, String token) throws IOException {
+        String[] p = parts(token);
+        if (p == null || !p[0].equals(user))
+            throw new SecurityException("Token is not for " + user);
+        long expiry, epoch;
+        try {
+            expiry = Long.parseLong(p[1]);
+            epoch = Long.parseLong(p[2]);
+        } catch (NumberFormatException e) {
+            throw new SecurityException("Malformed token");
+        }
+        if (expiry < System.currentTimeMillis() / 1000) {
+            verified.remove(token);
+            throw new SecurityException("Session expired, log in again with --login");
+        }
+        if (epoch != epoch(user))
+            throw new SecurityException("Session revoked, log in again with --login");
+        if (verified.contains(token)) return; // Signature already checked
+        String body = p[0] + "." + p[1] + "." + p[2];
+        if (!MessageDigest.isEqual(sign(body, false).getBytes(StandardCharsets.US_ASCII), p[3].getBytes(StandardCharsets.US_ASCII)))
+            throw new SecurityException("Invalid token");
+        if (verified.size() >= CACHE_LIMIT) verified.clear();
+        verified.add(token);
+    }
+
+    // Invalidates every token issued to user so far; needs the exclusive game lock
+    public void revoke(String user) throws IOException {
+        revoke(Collections.singletonList(user));
+    }
+
+    // Same for several users, with one write of the sessions file
+    public void revoke(Collection<String> users) throws IOException {
+        Map<String, Long> next = new LinkedHashMap<>(epochs());
+        for (String user: users) next.put(user, next.getOrDefault(user, 0L) + 1);
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Long> e: next.entrySet()) lines.add(e.getKey() + "," + e.getValue());
+        store.replace(Collections.singletonMap(SESSIONS_FILE, GameStore.text(lines)));
+        verified.clear();
+    }
+
+    // True if the token's expiry has passed; needs no key, so the CLI can drop a stale saved token
+    public static boolean expired(String token) {
+        String[] p = parts(token);
+        try {
+            return p == null || Long.parseLong(p[1]) < System.currentTimeMillis() / 1000;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    // File in the user's home directory holding the saved token of user for a game
+    public static Path savedToken(String game, String user) {
+        String id = Integer.toHexString(Paths.get(game).toAbsolutePath().normalize().toString().hashCode());
+        return Paths.get(System.getProperty("user.home"), ".crazyeights", user + "@" + id + ".token");
+    }
+
+    // Saves a token readable by the owner only: it goes into a new owner-only file renamed over the old one,
+    // so no one else can read it at any point
+    public static void save(Path file, String token) throws IOException {
+        Path dir = file.getParent();
+        if (!Files.isDirectory(dir)) Files.createDirectories(dir, ownerOnlyAttributes(dir, true));
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp); // Left by a crash, maybe with other permissions
+        try (SeekableByteChannel ch = Files.newByteChannel(tmp,
+                EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), ownerOnlyAttributes(tmp, false))) {
+            ByteBuffer buf = ByteBuffer.wrap((token + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Reads a saved token, or null if there is none or it expired
+    public static String load(Path file) throws IOException {
+        if (!Files.exists(file)) return null;
+        String token = Files.readAllLines(file).get(0).trim();
+        return expired(token) ? null : token;
+    }
+
+    // Splits a token at its last three dots, since a user name may contain dots; null if malformed
+    private static String[] parts(String token) {
+        String[] p = new String[4];
+        int end = token.length();
+        for (int i = 3; i > 0; i--) {
+            int dot = token.lastIndexOf('.', end - 1);
+            if (dot < 0) return null;
+            p[i] = token.substring(dot + 1, end);
+            end = dot;
+        }
+        p[0] = token.substring(0, end);
+        return p;
+    }
+
+    private long epoch(String user) throws IOException {
+        return epochs().getOrDefault(user, 0L);
+    }
+
+    // Current epochs; sessions.txt is reread when another process revoked a user
+    private Map<String, Long> epochs() throws IOException {
+        long stamp = store.stamp(SESSIONS_FILE);
+        if (stamp != epochsStamp) {
+            Map<String, Long> m = new HashMap<>();
+            if (store.exists(SESSIONS_FILE))
+                for (String l: store.readLines(SESSIONS_FILE)) {
+                    String[] p = l.split(",", 2);
+                    if (p.length == 2) m.put(p[0], Long.parseLong(p[1].trim()));
+                }
+            epochs = m;
+            epochsStamp = stamp;
+        }
+        return epochs;
+    }
+
+    // Base64url HMAC-SHA256 (RFC 2104) of body with the game's key
+    private String sign(String body, boolean create) throws IOException {
+        byte[][] p = pads(create);
+        MessageDigest md = sha256.get();
+        md.update(p[0]);
+        byte[] inner = md.digest(body.getBytes(StandardCharsets.UTF_8));
+        md.update(p[1]);
+        byte[] sig = md.digest(inner);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sig);
+    }
+
+    // Looks up a digest of the SUN provider, which the JDK always has
+    static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Reads the key and derives the HMAC pads; the first login creates the key under the exclusive game lock
+    private byte[][] pads(boolean create) throws IOException {
+        if (pads != null) return pads;
+        synchronized (this) {
+            if (pads != null) return pads;
+            if (!store.exists(KEY_FILE)) {
+                if (!create) throw new SecurityException("Invalid token");
+                byte[] k = new byte[32];
+                new SecureRandom().nextBytes(k);
+                store.replace(Collections.singletonMap(KEY_FILE, k)); // Owner-only in every store
+            }
+            byte[] k = store.read(KEY_FILE);
+            if (k.length > BLOCK) k = digest("SHA-256").digest(k); // Long keys are hashed first
+            byte[] ipad = new byte[BLOCK], opad = new byte[BLOCK];
+            for (int i = 0; i < BLOCK; i++) {
+                byte b = i < k.length ? k[i] : 0;
+                ipad[i] = (byte) (b ^ 0x36);
+                opad[i] = (byte) (b ^ 0x5c);
+            }
+            pads = new byte[][]{ipad, opad};
+            return pads;
+        }
+    }
+
+    // Attributes that create a file (rw-------) or directory (rwx------) owner-only from the start;
+    // none where the file system is not POSIX
+    static FileAttribute<?>[] ownerOnlyAttributes(Path f, boolean directory) {
+        if (!f.getFileSystem().supportedFileAttributeViews().contains("posix")) return new FileAttribute<?>[0];
+        return new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(
+            PosixFilePermissions.fromString(directory ? "rwx------" : "rw-------"))};
+    }
+
+    // Makes a file readable by its owner only, where the file system allows it
+    static void ownerOnly(Path f) throws IOException {
+        try {
+            Files.setPosixFilePermissions(f, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; the file keeps the default permissions
+        }
+    }
+}
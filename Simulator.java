@@ -0,0 +1,194 @@
+/*
+Purpose: This class plays Crazy Eights headless and in memory, for rule balance and engine throughput.
+It uses the same Card, Deck and Player rules as GameManager (Card.matches, a draw before passing,
+reshuffles seeded from the game seed) but no files, locks or console.
+Games run in parallel on all cores; every game gets its own seed, so a run is reproducible from one seed.
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class Simulator {
+    // A game with more turns than this is called a stalemate
+    private static final int MAX_TURNS = 10_000;
+    // Loser scores are counted per point up to this value; higher ones go into the last bucket
+    private static final int MAX_SCORE = 400;
+
+    private final List<BotStrategy> seats; // Bot of each seat, first to play first
+    private final int decks; // Decks in the shoe
+
+    public Simulator(List<BotStrategy> seats) {
+        this(seats, 1);
+    }
+
+    public Simulator(List<BotStrategy> seats, int decks) {
+        if (seats.size() < 2) throw new IllegalArgumentException("Required at least 2 players");
+        if (seats.size() * 5 >= Card.COUNT * decks)
+            throw new IllegalArgumentException("Too many players for " + decks + (decks == 1 ? " deck" : " decks"));
+        this.seats = new ArrayList<>(seats);
+        this.decks = decks;
+    }
+
+    // Outcome of all simulated games; merged across threads
+    public static class Stats {
+        long games; // Games played
+        long stalemates; // Games nobody could finish
+        long turns; // Turns over all games
+        final long[] wins; // Wins per seat
+        final long[] loserScores = new long[MAX_SCORE + 1]; // Histogram of the losers' Player.score()
+        long nanos; // Wall-clock time of the run
+
+        Stats(int seats) {
+            wins = new long[seats];
+        }
+
+        void merge(Stats o) {
+            games += o.games;
+            stalemates += o.stalemates;
+            turns += o.turns;
+            for (int i = 0; i < wins.length; i++) wins[i] += o.wins[i];
+            for (int i = 0; i < loserScores.length; i++) loserScores[i] += o.loserScores[i];
+        }
+
+        // Prints games per second, turns per game, win rates by seat and the loser score distribution
+        public void report(PrintStream out, List<String> names) {
+            out.printf("Games: %d in %.2f s (%.0f games/s)%n", games, nanos / 1e9, games / (nanos / 1e9));
+            out.printf("Average turns per game: %.2f%n", (double) turns / games);
+            if (stalemates > 0) out.printf("Stalemates: %d (%.2f%%)%n", stalemates, 100.0 * stalemates / games);
+            out.println("Win rate by seat:");
+            for (int i = 0; i < wins.length; i++)
+                out.printf("  seat %d (%s): %.2f%%%n", i + 1, names.get(i), 100.0 * wins[i] / games);
+            long n = LongStream.of(loserScores).sum();
+            if (n == 0) return;
+            long sum = 0;
+            for (int s = 0; s < loserScores.length; s++) sum += s * loserScores[s];
+            out.printf("Loser score: mean %.2f, p50 %d, p90 %d, p99 %d, max %d%n",
+                (double) sum / n, percentile(0.5), percentile(0.9), percentile(0.99), percentile(1.0));
+        }
+
+        // Smallest score at or below which the given fraction of loser scores fall
+        private int percentile(double p) {
+            long n = LongStream.of(loserScores).sum();
+            long want = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int s = 0; s < loserScores.length; s++) {
+                seen += loserScores[s];
+                if (seen >= want && loserScores[s] > 0) return s;
+            }
+            return MAX_SCORE;
+        }
+    }
+
+    // Plays n games across all cores; game i is seeded from seed and i
+    public Stats run(long n, long seed) {
+        long start = System.nanoTime();
+        Stats total = LongStream.range(0, n).parallel().collect(
+            () -> new Stats(seats.size()),
+            (st, i) -> play(seed + i * 0x9E3779B97F4A7C15L, st),
+            Stats::merge);
+        total.nanos = System.nanoTime() - start;
+        return total;
+    }
+
+    // How one game ended
+    static final class Outcome {
+        final int winner; // Seat that emptied its hand, -1 for a stalemate
+        final int[] scores; // Player.score() left in each seat's hand
+        final int turns;
+
+        Outcome(int winner, int[] scores, int turns) {
+            this.winner = winner;
+            this.scores = scores;
+            this.turns = turns;
+        }
+    }
+
+    // Plays one game and adds its outcome to st
+    void play(long seed, Stats st) {
+        Outcome o = game(seed);
+        st.games++;
+        st.turns += o.turns;
+        if (o.winner < 0) {
+            st.stalemates++;
+            return;
+        }
+        st.wins[o.winner]++;
+        for (int i = 0; i < o.scores.length; i++)
+            if (i != o.winner) st.loserScores[Math.min(o.scores[i], MAX_SCORE)]++;
+    }
+
+    // Plays one game to its end
+    Outcome game(long seed) {
+        Deck deck = new Deck(seed, decks);
+        SplittableRandom rnd = new SplittableRandom(seed); // For the bots; independent of the deck
+        Player[] players = new Player[seats.size()];
+        for (int i = 0; i < players.length; i++) {
+            players[i] = new Player("seat" + (i + 1));
+            players[i].dealInitial(deck.deal(5));
+        }
+        deck.start();
+
+        int idx = 0;
+        int stuck = 0; // Turns in a row that ended with nothing left to draw
+        int turn;
+        for (turn = 1; turn <= MAX_TURNS; turn++) {
+            BotStrategy bot = seats.get(idx);
+            if (takeTurn(players, idx, bot, deck, rnd)) return new Outcome(idx, scores(players), turn);
+            stuck = deck.needsReshuffle() && deck.discardCount() <= 1 ? stuck + 1 : 0;
+            if (stuck > players.length) break; // Every card is in someone's hand and nobody can play
+            idx = (idx + 1) % players.length;
+        }
+        return new Outcome(-1, scores(players), Math.min(turn, MAX_TURNS));
+    }
+
+    private static int[] scores(Player[] players) {
+        int[] s = new int[players.length];
+        for (int i = 0; i < s.length; i++) s[i] = players[i].score();
+        return s;
+    }
+
+    // One turn with the GameManager rules: play, or draw once and then play or pass; true if p won
+    private static boolean takeTurn(Player[] players, int idx, BotStrategy bot, Deck deck, SplittableRandom rnd) {
+        Player p = players[idx];
+        Card top = deck.topDiscard();
+        long playable = p.playableMask(top);
+        Card c = playable == 0 ? null : choose(players, idx, bot, deck, top, playable, false, rnd);
+        if (c == null) {
+            if (deck.needsReshuffle() && deck.discardCount() <= 1) return false; // Nothing left to draw
+            p.draw(deck);
+            playable = p.playableMask(top);
+            c = playable == 0 ? null : choose(players, idx, bot, deck, top, playable, true, rnd);
+            if (c == null) return false; // Pass
+        }
+        p.play(c, deck);
+        return p.hasWon();
+    }
+
+    // Asks the bot for its move, showing it the table if it looks at it
+    private static Card choose(Player[] players, int idx, BotStrategy bot, Deck deck, Card top, long playable,
+            boolean hasDrawn, SplittableRandom rnd) {
+        if (!bot.seesTable()) return bot.choose(players[idx], top, playable, hasDrawn, rnd);
+        int[] sizes = new int[players.length];
+        for (int i = 0; i < sizes.length; i++) sizes[i] = players[(idx + i) % players.length].handSize();
+        return bot.choose(new BotStrategy.View(sizes, deck.drawCount(), deck.discardCounts()),
+            players[idx], top, playable, hasDrawn, rnd);
+    }
+
+    // Runs a simulation from the command line and prints the report
+    public static void simulate(long games, int players, int decks, String bots, long seed) {
+        List<String> names = new ArrayList<>(Arrays.asList(bots.split(",")));
+        while (names.size() < players) names.add(names.get(names.size() - 1)); // The last bot fills the other seats
+        if (names.size() > players) names = names.subList(0, players);
+        List<BotStrategy> seats = new ArrayList<>();
+        for (String b: names) seats.add(BotStrategy.of(b));
+        Simulator sim = new Simulator(seats, decks);
+        boolean searching = false;
+        for (BotStrategy b: seats) searching |= b instanceof MonteCarloBot;
+        // Warm up the JIT before timing; a searching bot warms up within its first game
+        sim.run(Math.min(games, searching ? 1 : 10_000), seed);
+        sim.run(games, seed).report(System.out, names);
+        for (int i = 0; i < seats.size(); i++)
+            if (seats.get(i) instanceof MonteCarloBot) ((MonteCarloBot) seats.get(i)).report("seat " + (i + 1) + " (" + names.get(i) + ")", System.out);
+    }
+}
@@ -0,0 +1,494 @@
+/*
+Purpose: This class keeps many games in one store file (games.c8s), so tens of thousands of games cost one inode
+instead of a directory of files each. The file is a header, a directory of game names and a fixed-size slot per game,
+preallocated (sparsely) GROW slots at a time. The default slot holds a dealt table of AuthManager.MAX_PLAYERS;
+a file with smaller slots (--slot-kb) seats fewer players, as capacity() tells AuthManager.
+A slot holds two halves, each a header (generation, length, CRC32C) and every file of the game; a write fills the
+half that is not current and bumps the generation, so a torn write leaves the other half valid and no recovery is
+needed. A half written without an fsync is flagged so, and the other half is only overwritten once it is on disk, so
+one half always is. Until then, as when a game moves twice within one flush window, the unforced half is rewritten in
+place, so the move does not wait for an fsync under the game lock; only while an fsync of it is running, or when
+another process wrote it, does a write wait for it to be on disk.
+The index from game name to slot lives in memory, is read from the directory in one go and reread when a name is
+missing, e.g. after another process added a game.
+A slot's decoded files are cached and only reread when its generation on disk moved.
+Each game locks its own byte past the end of the file; one channel per store file and process is kept open,
+since closing any channel on a file drops every lock the process holds on it.
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+public class SlotGameStore implements GameStore {
+    public static final String SUFFIX = ".c8s"; // Store files end in this
+    // Slot size of a new store file unless --slot-kb says otherwise: a table of AuthManager.MAX_PLAYERS fits a half
+    public static final int DEFAULT_SLOT_KB =
+        (int) ((2L * AuthManager.MAX_PLAYERS * GameStore.SEAT_BYTES + 2 * SlotGameStore.HALF_HEADER + 1023) >> 10);
+
+    private static final int MAGIC = 0x43385354; // "C8ST", starts the file
+    private static final short VERSION = 1;
+    private static final int HALF_MAGIC = 0x43384846; // "C8HF", starts a written half header
+    private static final int OFF_SLOT_SIZE = 8, OFF_COUNT = 12; // In the file header
+    private static final int HEADER = 4096; // File header: magic, version, slot size, slots allocated
+    private static final int ENTRY = 64; // Directory entry: name length byte and the name
+    private static final int MAX_SLOTS = 65536; // Directory capacity
+    private static final long DATA = HEADER + (long) MAX_SLOTS * ENTRY; // Offset of slot 0
+    private static final int HALF_HEADER = 24; // Magic, generation, payload length, CRC32C, flags
+    private static final int UNFORCED = 1; // Half header flag: written without an fsync
+    private static final int GROW = 64; // Slots the file is extended by at a time
+    private static final long LOCKS = 1L << 62; // Slot i locks byte LOCKS + i, far past the end of the file
+    private static final long ALLOC_LOCK = LOCKS - 1; // Held while a slot is allocated
+    private static final Map<Path, StoreFile> FILES = new ConcurrentHashMap<>(); // Open store files
+
+    private final StoreFile file;
+    private final Slot slot;
+    private final Path id;
+
+    private SlotGameStore(StoreFile file, Slot slot) {
+        this.file = file;
+        this.slot = slot;
+        this.id = file.path.resolveSibling(file.path.getFileName() + "#" + slot.game);
+    }
+
+    // True if root names a store file rather than a directory of games
+    public static boolean isStore(Path root) {
+        return Files.isRegularFile(root) || root.getFileName() != null && root.getFileName().toString().endsWith(SUFFIX);
+    }
+
+    // Opens a game of a store file
+    public static SlotGameStore open(Path path, String game) throws IOException {
+        StoreFile f = StoreFile.of(path, false, 0);
+        return new SlotGameStore(f, f.find(game));
+    }
+
+    // Adds a game to a store file, creating the file with the default slot size if needed
+    public static SlotGameStore create(Path path, String game) throws IOException {
+        StoreFile f = StoreFile.of(path, true, 0);
+        return new SlotGameStore(f, f.allocate(game));
+    }
+
+    // Creates a store file with slots of slotKb KB, or checks that an existing one has them
+    public static void createFile(Path path, int slotKb) throws IOException {
+        if (slotKb < 8 || slotKb > 1 << 20) throw new IllegalArgumentException("--slot-kb must be from 8 to 1048576");
+        StoreFile.of(path, true, slotKb);
+    }
+
+    @Override public String name() { return slot.game; }
+    @Override public Path id() { return id; }
+    @Override public Path directory() { return null; }
+    @Override public String toString() { return id.toString(); }
+
+    @Override public boolean exists(String f) throws IOException {
+        return slot.files().containsKey(f);
+    }
+
+    @Override public byte[] read(String f) throws IOException {
+        Entry e = slot.files().get(f);
+        if (e == null) throw new NoSuchFileException(id + "/" + f);
+        return e.data.clone();
+    }
+
+    @Override public byte[] tail(String f, int n) throws IOException {
+        Entry e = slot.files().get(f);
+        if (e == null) return new byte[0];
+        return Arrays.copyOfRange(e.data, Math.max(0, e.data.length - n), e.data.length);
+    }
+
+    // Generation of the slot at which the file was last written
+    @Override public long stamp(String f) throws IOException {
+        Entry e = slot.files().get(f);
+        return e == null ? 0 : e.stamp;
+    }
+
+    @Override public void write(String f, List<String> lines) throws IOException {
+        slot.write(Collections.singletonMap(f, GameStore.text(lines)), false, false);
+    }
+
+    @Override public void append(String f, List<String> lines, boolean force) throws IOException {
+        slot.write(Collections.singletonMap(f, GameStore.text(lines)), true, force);
+    }
+
+    // Forces the whole store file, so the writes of every game in it since the last fsync
+    @Override public void force(String f) throws IOException {
+        file.force();
+    }
+
+    @Override public Path forceKey(String f) {
+        return file.path;
+    }
+
+    // One write of the slot, so all or nothing anyway
+    @Override public void replace(Map<String, byte[]> files) throws IOException {
+        slot.write(files, false, true);
+    }
+
+    @Override public void delete(String f) throws IOException {
+        if (!exists(f)) return;
+        slot.write(Collections.singletonMap(f, null), false, false);
+    }
+
+    // A game's files all go into one half of its slot
+    @Override public long capacity() {
+        return file.halfSize;
+    }
+
+    @Override public boolean needsRecovery() { return false; } // A torn half is skipped when read
+    @Override public void recover() { }
+
+    @Override public GameLock lock() {
+        return GameLock.of(id, file.ch, LOCKS + slot.index);
+    }
+
+    @Override public TurnWatch watch() {
+        return TurnWatch.of(id, file.path.getParent(), slot::generation);
+    }
+
+    // One file of a game, with the generation that wrote it
+    private static final class Entry {
+        final byte[] data;
+        final long stamp;
+
+        Entry(byte[] data, long stamp) {
+            this.data = data;
+            this.stamp = stamp;
+        }
+    }
+
+    // An open store file and its index of games
+    private static final class StoreFile {
+        final Path path; // Absolute
+        final FileChannel ch; // Kept open for the life of the process
+        final int slotSize; // Bytes per slot
+        final int halfSize; // Payload bytes per half
+        private final Map<String, Slot> slots = new HashMap<>(); // Index by game name; guarded by this
+        private int indexed = 0; // Directory entries read into the index; guarded by this
+        private final AtomicLong forces = new AtomicLong(); // fsyncs started
+        private final AtomicLong forced = new AtomicLong(); // Highest fsync completed
+        private int running = 0; // fsyncs in progress; guarded by progress, which is notified when one ends
+        private final Object progress = new Object();
+
+        private StoreFile(Path path, FileChannel ch, int slotSize) {
+            this.path = path;
+            this.ch = ch;
+            this.slotSize = slotSize;
+            this.halfSize = (slotSize - 2 * HALF_HEADER) / 2;
+        }
+
+        // The open store file at path, opened or (with create) created on first use; slotKb 0 means any slot size
+        static StoreFile of(Path path, boolean create, int slotKb) throws IOException {
+            Path key = path.toAbsolutePath().normalize();
+            StoreFile f = FILES.get(key);
+            if (f == null)
+                synchronized (FILES) {
+                    f = FILES.get(key);
+                    if (f == null) {
+                        f = open(key, create, slotKb);
+                        FILES.put(key, f);
+                    }
+                }
+            if (slotKb != 0 && f.slotSize != slotKb << 10)
+                throw new IllegalArgumentException(path + " has slots of " + (f.slotSize >> 10) + " KB");
+            return f;
+        }
+
+        // Reads the header, or writes it into a new file, under the allocation lock
+        private static StoreFile open(Path path, boolean create, int slotKb) throws IOException {
+            if (!create && !Files.isRegularFile(path)) throw new IllegalArgumentException("Game does not exist");
+            FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try (FileLock l = ch.lock(ALLOC_LOCK, 1, false)) {
+                if (ch.size() == 0) {
+                    int size = (slotKb == 0 ? DEFAULT_SLOT_KB : slotKb) << 10;
+                    ByteBuffer h = ByteBuffer.allocate(HEADER);
+                    h.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(size).putInt(0).rewind();
+                    writeFully(ch, h, 0);
+                    writeFully(ch, ByteBuffer.allocate(1), DATA + (long) GROW * size - 1); // Sparse up to the first slots
+                    ch.force(true);
+                    SessionTokens.ownerOnly(path); // The games' password hashes and session keys are inside
+                    return new StoreFile(path, ch, size);
+                }
+                ByteBuffer h = readFully(ch, 0, 16);
+                if (h.getInt(0) != MAGIC) throw new IllegalStateException(path + " is not a Crazy Eights store file");
+                if (h.getShort(4) != VERSION) throw new IllegalStateException("Unsupported store file version " + h.getShort(4));
+                return new StoreFile(path, ch, h.getInt(OFF_SLOT_SIZE));
+            } catch (IOException | RuntimeException e) {
+                ch.close();
+                throw e;
+            }
+        }
+
+        // Slot of a game, rereading the directory if it is not indexed yet
+        synchronized Slot find(String game) throws IOException {
+            Slot s = slots.get(game);
+            if (s == null) {
+                rescan();
+                s = slots.get(game);
+            }
+            if (s == null) throw new IllegalArgumentException("Game does not exist");
+            return s;
+        }
+
+        // Gives a new game the next free slot; the file grows by GROW slots when it runs out
+        synchronized Slot allocate(String game) throws IOException {
+            byte[] name = game.getBytes(StandardCharsets.UTF_8);
+            if (name.length == 0 || name.length >= ENTRY)
+                throw new IllegalArgumentException("A game name in a store file takes 1 to " + (ENTRY - 1) + " bytes");
+            try (FileLock l = ch.lock(ALLOC_LOCK, 1, false)) {
+                rescan();
+                if (slots.containsKey(game)) throw new IllegalArgumentException("Game already exists");
+                int i = indexed;
+                if (i == MAX_SLOTS) throw new IllegalStateException(path + " is full (" + MAX_SLOTS + " games)");
+                if (ch.size() < offset(i + 1))
+                    writeFully(ch, ByteBuffer.allocate(1), offset(i + GROW) - 1);
+                ByteBuffer e = ByteBuffer.allocate(ENTRY);
+                e.put((byte) name.length).put(name).rewind();
+                writeFully(ch, e, HEADER + (long) i * ENTRY);
+                ByteBuffer count = ByteBuffer.allocate(4);
+                count.putInt(0, i + 1);
+                writeFully(ch, count, OFF_COUNT); // After the entry, so a reader that sees the count sees the name
+                ch.force(true);
+                Slot s = new Slot(this, game, i);
+                slots.put(game, s);
+                indexed = i + 1;
+                return s;
+            }
+        }
+
+        // Reads the directory entries added since the last scan
+        private void rescan() throws IOException {
+            int count = readFully(ch, OFF_COUNT, 4).getInt(0);
+            if (count <= indexed) return;
+            ByteBuffer d = readFully(ch, HEADER + (long) indexed * ENTRY, (count - indexed) * ENTRY);
+            for (int i = indexed; i < count; i++) {
+                int at = (i - indexed) * ENTRY;
+                byte[] name = new byte[d.get(at) & 0xFF];
+                d.get(at + 1, name);
+                String game = new String(name, StandardCharsets.UTF_8);
+                slots.put(game, new Slot(this, game, i));
+            }
+            indexed = count;
+        }
+
+        // Forces the file; every write that finished before it started is on disk afterwards
+        void force() throws IOException {
+            long n;
+            synchronized (progress) {
+                n = forces.incrementAndGet();
+                running++;
+            }
+            try {
+                ch.force(false);
+                forced.accumulateAndGet(n, Math::max);
+            } finally {
+                synchronized (progress) {
+                    running--;
+                    progress.notifyAll();
+                }
+            }
+        }
+
+        // Returns once an fsync that started after the mark has completed, waiting for a running one rather than
+        // starting another
+        void forceSince(long mark) throws IOException {
+            synchronized (progress) {
+                while (!onDisk(mark) && forces.get() > mark && running > 0) {
+                    try {
+                        progress.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted");
+                    }
+                }
+            }
+            if (!onDisk(mark)) force(); // None was running, or it failed
+        }
+
+        // True once an fsync started after the mark: it may report writes from before the mark as on disk
+        boolean forcing(long mark) {
+            return forces.get() > mark;
+        }
+
+        // Mark of a write that just finished, for onDisk()
+        long mark() {
+            return forces.get();
+        }
+
+        // True once an fsync that started after the mark was taken has completed
+        boolean onDisk(long mark) {
+            return forced.get() > mark;
+        }
+
+        long offset(int slot) {
+            return DATA + (long) slot * slotSize;
+        }
+    }
+
+    // One game's slot and its decoded files as of the cached generation
+    private static final class Slot {
+        final StoreFile file;
+        final String game;
+        final int index;
+        private long gen = -1; // Generation of the cached files, -1 before the first read
+        private int half; // Half they were read from
+        private long unforced = -1; // StoreFile.mark() after the current half was written without an fsync, else -1
+        private boolean own; // This process wrote the current half, so its fsyncs are the ones that can cover it
+        private Map<String, Entry> files = Collections.emptyMap(); // Replaced, never changed, on a write
+
+        Slot(StoreFile file, String game, int index) {
+            this.file = file;
+            this.game = game;
+            this.index = index;
+        }
+
+        // The game's files, reread if another process wrote the slot since
+        synchronized Map<String, Entry> files() throws IOException {
+            refresh();
+            return files;
+        }
+
+        // Writes the given files (null deletes one) into the half that is not current; with append, data is appended
+        synchronized void write(Map<String, byte[]> changes, boolean append, boolean force) throws IOException {
+            refresh();
+            long next = gen + 1;
+            Map<String, Entry> m = new TreeMap<>(files);
+            for (Map.Entry<String, byte[]> c: changes.entrySet()) {
+                byte[] data = c.getValue();
+                Entry old = m.get(c.getKey());
+                if (data == null) {
+                    m.remove(c.getKey());
+                    continue;
+                }
+                if (append && old != null) {
+                    byte[] joined = Arrays.copyOf(old.data, old.data.length + data.length);
+                    System.arraycopy(data, 0, joined, old.data.length, data.length);
+                    data = joined;
+                }
+                m.put(c.getKey(), new Entry(data, next));
+            }
+            byte[] payload = encode(m);
+            if (payload.length > file.halfSize)
+                throw new IllegalStateException("Game " + game + " outgrew its slot of " + (file.slotSize >> 10) + " KB");
+            int target = 1 - half;
+            if (unforced >= 0 && !file.onDisk(unforced)) { // The other half is the one known to be on disk
+                if (own && !file.forcing(unforced)) target = half; // No fsync vouches for this one yet: rewrite it
+                else file.forceSince(unforced);
+            }
+            long base = file.offset(index);
+            writeFully(file.ch, ByteBuffer.wrap(payload), base + 2 * HALF_HEADER + (long) target * file.halfSize);
+            ByteBuffer h = ByteBuffer.allocate(HALF_HEADER);
+            h.putInt(HALF_MAGIC).putLong(next).putInt(payload.length).putInt(crc(next, payload)).putInt(force ? 0 : UNFORCED).rewind();
+            writeFully(file.ch, h, base + (long) target * HALF_HEADER); // After the payload: the header makes it current
+            if (force) file.force();
+            unforced = force ? -1 : file.mark();
+            own = true;
+            Metrics.wrote(payload.length + HALF_HEADER);
+            gen = next;
+            half = target;
+            files = m;
+        }
+
+        // Generation on disk, from the half headers only; changes whenever the game is written
+        long generation() {
+            try {
+                ByteBuffer h = readFully(file.ch, file.offset(index), 2 * HALF_HEADER);
+                return Math.max(h.getInt(0) == HALF_MAGIC ? h.getLong(4) : 0,
+                    h.getInt(HALF_HEADER) == HALF_MAGIC ? h.getLong(HALF_HEADER + 4) : 0);
+            } catch (IOException e) {
+                return -1; // Counts as a change
+            }
+        }
+
+        // Checks the half headers and decodes the newest valid half unless it is the cached one
+        private void refresh() throws IOException {
+            ByteBuffer h = readFully(file.ch, file.offset(index), 2 * HALF_HEADER);
+            long[] g = new long[2];
+            for (int k = 0; k < 2; k++) g[k] = h.getInt(k * HALF_HEADER) == HALF_MAGIC ? h.getLong(k * HALF_HEADER + 4) : -1;
+            if (g[0] < 0 && g[1] < 0) { // Never written: a new game
+                gen = 0;
+                half = 1; // So the first write goes to half 0
+                unforced = -1;
+                files = Collections.emptyMap();
+                return;
+            }
+            int first = g[0] >= g[1] ? 0 : 1;
+            for (int k: new int[]{first, 1 - first}) {
+                if (g[k] < 0) continue;
+                if (g[k] == gen && k == half) return; // Cached
+                Map<String, Entry> m = load(k, g[k], h.getInt(k * HALF_HEADER + 12), h.getInt(k * HALF_HEADER + 16));
+                if (m != null) {
+                    gen = g[k];
+                    half = k;
+                    // Written by another process: if it skipped the fsync, it may not be on disk yet
+                    unforced = (h.getInt(k * HALF_HEADER + 20) & UNFORCED) != 0 ? file.mark() : -1;
+                    own = false;
+                    files = m;
+                    return;
+                }
+            }
+            throw new IllegalStateException("Both halves of the slot of " + game + " are damaged");
+        }
+
+        // Reads and decodes a half, or null if its payload does not match its header (a torn write)
+        private Map<String, Entry> load(int k, long g, int len, int crc) throws IOException {
+            if (len < 0 || len > file.halfSize) return null;
+            ByteBuffer b = readFully(file.ch, file.offset(index) + 2 * HALF_HEADER + (long) k * file.halfSize, len);
+            if (crc(g, b.array()) != crc) return null;
+            return decode(b.array());
+        }
+
+        // Payload: game name, file count, then per file its name, generation, length and bytes
+        private byte[] encode(Map<String, Entry> m) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(game);
+            out.writeInt(m.size());
+            for (Map.Entry<String, Entry> e: m.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().stamp);
+                out.writeInt(e.getValue().data.length);
+                out.write(e.getValue().data);
+            }
+            return bytes.toByteArray();
+        }
+
+        private Map<String, Entry> decode(byte[] payload) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (!in.readUTF().equals(game)) throw new IllegalStateException("Slot " + index + " does not hold " + game);
+            Map<String, Entry> m = new TreeMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = in.readUTF();
+                long stamp = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                m.put(name, new Entry(data, stamp));
+            }
+            return Collections.unmodifiableMap(m);
+        }
+
+        private static int crc(long gen, byte[] payload) {
+            CRC32C c = new CRC32C();
+            c.update(ByteBuffer.allocate(12).putLong(gen).putInt(payload.length).flip());
+            c.update(payload);
+            return (int) c.getValue();
+        }
+    }
+
+    // Reads n bytes at pos; what lies past the end of the file reads as zeros
+    private static ByteBuffer readFully(FileChannel ch, long pos, int n) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(n);
+        while (b.hasRemaining() && ch.read(b, pos + b.position()) > 0) { }
+        Metrics.read(b.position());
+        b.rewind();
+        return b;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) ch.write(b, pos + b.position());
+    }
+}
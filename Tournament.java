@@ -0,0 +1,434 @@
+/*
+Purpose: This class runs a tournament: it seats a pool of players at tables of a given size, plays rounds and
+advances players by Swiss pairing or a knockout bracket.
+The pool file has a line "<name> <bot>" per player, where <bot> is a BotStrategy name or "human"; # starts a comment.
+A table of bots only is played in memory with the Simulator's rules. Those tables run at once on a work-stealing
+ForkJoinPool, each deal of a table a task of its own, so a long table does not hold up a thread while others wait.
+A table with a human is a real game in the games directory or store file: the tournament creates it, prints each
+human's session token, plays the bot seats itself and reads the result once the game is over. A human who does not
+move within the move timeout is reported and their seat drawn and passed for them for the rest of that deal.
+A table's result is the deals each seat won and the Player.score() penalties left in hand; its winner won the most
+deals, ties going to fewer penalty points. Swiss rounds seat players of equal standing together and avoid rematches
+where they can; a knockout round advances each table's winner until one player is left.
+Each round reports its tables, how long it took and the bot tables' throughput; the end prints the standings.
+*/
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Tournament {
+    public enum Pairing { SWISS, KNOCKOUT }
+
+    public static final long DEFAULT_MOVE_TIMEOUT_SECONDS = 300;
+    private static final int WINDOW = 2; // A Swiss seat is filled from this many tables' worth of the next players
+
+    private final List<Entrant> entrants; // The pool, in file order
+    private final int tableSize; // Most seats at a table; tables of a round differ by one seat at most
+    private final Pairing pairing;
+    private final int rounds; // Swiss rounds; a knockout plays until one player is left
+    private final int deals; // Games each table plays per round
+    private final SplittableRandom rnd; // Seating and table seeds, so an event is reproducible from one seed
+    private final Path games; // Directory or store file the tables with humans are created in
+    private final String prefix; // Game names are "<prefix>-r<round>-t<table>"
+    private final long ttlMinutes; // Lifetime of the humans' session tokens
+    private final long moveTimeoutSeconds; // How long a live table waits for a human's move; 0 waits forever
+    private final ForkJoinPool pool; // Plays the bot tables
+    private final PrintStream out;
+
+    // One player of the pool and their totals so far
+    static final class Entrant {
+        final String name;
+        final String kind; // Bot name as in the pool file, or "human"
+        final BotStrategy bot; // Null for a human
+        int tables, tablesWon, deals, dealsWon;
+        long penalty; // Player.score() left in hand over every deal
+        final Map<String, Integer> met = new HashMap<>(); // Times each opponent shared a table with them
+        int draw; // Place in the seeded shuffle of the pool, the last tie-break
+
+        Entrant(String name, String kind) {
+            this.name = name;
+            this.kind = kind;
+            this.bot = kind.equals("human") ? null : BotStrategy.of(kind);
+        }
+    }
+
+    // One table of a round and how its deals ended
+    static final class Table {
+        final int round, number;
+        final List<Entrant> seats;
+        final long seed; // Deal d is dealt from seed + d
+        final int[] wins; // Deals won, by seat
+        final long[] penalty; // Penalty points, by seat
+        int stalemates; // Deals nobody could finish
+        long turns; // Turns over every deal; only counted at bot tables
+        String game; // Game of a table with humans, else null
+        String admin; // Its admin token
+        Map<String, String> tokens; // Its session tokens by player
+
+        Table(int round, int number, List<Entrant> seats, long seed) {
+            this.round = round;
+            this.number = number;
+            this.seats = seats;
+            this.seed = seed;
+            wins = new int[seats.size()];
+            penalty = new long[seats.size()];
+        }
+
+        boolean live() {
+            for (Entrant e: seats)
+                if (e.bot == null) return true;
+            return false;
+        }
+
+        // Adds one deal: the winning seat (-1 for a stalemate) and everyone's Player.score()
+        void add(int winner, int[] scores) {
+            if (winner < 0) stalemates++;
+            else wins[winner]++;
+            for (int i = 0; i < scores.length; i++) penalty[i] += scores[i];
+        }
+
+        // Seats in finishing order: most deals won, then fewest penalty points, then seat order
+        List<Integer> ranking() {
+            List<Integer> r = new ArrayList<>();
+            for (int i = 0; i < seats.size(); i++) r.add(i);
+            r.sort(Comparator.comparingInt((Integer i) -> -wins[i]).thenComparingLong(i -> penalty[i]));
+            return r;
+        }
+    }
+
+    public Tournament(List<Entrant> entrants, int tableSize, Pairing pairing, int rounds, int deals, long seed,
+            Path games, String prefix, long ttlMinutes, long moveTimeoutSeconds, int threads, PrintStream out) {
+        if (entrants.size() < 2) throw new IllegalArgumentException("A tournament needs at least 2 players");
+        if (tableSize < 2) throw new IllegalArgumentException("Tables need at least 2 seats");
+        if (deals < 1) throw new IllegalArgumentException("Tables play at least 1 deal");
+        if (moveTimeoutSeconds < 0) throw new IllegalArgumentException("The move timeout cannot be negative");
+        this.entrants = entrants;
+        this.tableSize = tableSize;
+        this.pairing = pairing;
+        this.rounds = rounds > 0 ? rounds : 32 - Integer.numberOfLeadingZeros(entrants.size() - 1); // log2, rounded up
+        this.deals = deals;
+        this.rnd = new SplittableRandom(seed);
+        this.games = games;
+        this.prefix = prefix;
+        this.ttlMinutes = ttlMinutes;
+        this.moveTimeoutSeconds = moveTimeoutSeconds;
+        this.pool = new ForkJoinPool(threads);
+        this.out = out;
+    }
+
+    // Reads a pool file: "<name> <bot>" per line, <bot> being a BotStrategy name or "human"
+    static List<Entrant> readPool(Path file) throws IOException {
+        List<Entrant> pool = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String line: Files.readAllLines(file)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] w = line.split("\\s+");
+            if (w.length != 2) throw new IllegalArgumentException("Pool line is not <name> <bot>: " + line);
+            if (!w[0].matches("[A-Za-z0-9_-]+") || w[0].equalsIgnoreCase("admin"))
+                throw new IllegalArgumentException("Invalid player name: " + w[0]);
+            if (!names.add(w[0])) throw new IllegalArgumentException("Player listed twice: " + w[0]);
+            pool.add(new Entrant(w[0], w[1]));
+        }
+        return pool;
+    }
+
+    // Runs a tournament from the command line
+    public static void run(Path poolFile, Path games, int tableSize, String pairing, int rounds, int deals,
+            int threads, long seed, long ttlMinutes, long moveTimeoutSeconds) throws IOException {
+        Pairing p;
+        switch (pairing) {
+            case "swiss": p = Pairing.SWISS; break;
+            case "knockout": p = Pairing.KNOCKOUT; break;
+            default: throw new IllegalArgumentException("Unknown pairing " + pairing + " (swiss or knockout)");
+        }
+        String prefix = poolFile.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        new Tournament(readPool(poolFile), tableSize, p, rounds, deals, seed, games, prefix, ttlMinutes,
+            moveTimeoutSeconds, threads, System.out).run();
+    }
+
+    // Plays every round and prints the standings
+    public void run() throws IOException {
+        long start = System.nanoTime();
+        List<Entrant> active = new ArrayList<>(entrants);
+        for (int i = active.size() - 1; i > 0; i--) Collections.swap(active, i, rnd.nextInt(i + 1)); // Seeded draw
+        for (int i = 0; i < active.size(); i++) active.get(i).draw = i;
+        int round = 0;
+        try {
+            while (pairing == Pairing.SWISS ? round < rounds : active.size() > 1) {
+                round++;
+                List<Table> tables = seat(round, active);
+                play(round, tables);
+                if (pairing == Pairing.KNOCKOUT) {
+                    active = new ArrayList<>();
+                    for (Table t: tables) active.add(t.seats.get(t.ranking().get(0)));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        out.printf("%d rounds in %.2f s%n", round, (System.nanoTime() - start) / 1e9);
+        if (pairing == Pairing.KNOCKOUT) out.println("Champion: " + active.get(0).name);
+        standings();
+    }
+
+    // Seats the players of a round: a knockout keeps the bracket order, Swiss seats equal standings together
+    private List<Table> seat(int round, List<Entrant> active) {
+        List<Entrant> left = new ArrayList<>(active);
+        if (pairing == Pairing.SWISS)
+            left.sort(Comparator.comparingInt((Entrant e) -> -e.tablesWon).thenComparingInt(e -> -e.dealsWon)
+                .thenComparingLong(e -> e.penalty).thenComparingInt(e -> e.draw));
+        int n = left.size();
+        int count = (n + tableSize - 1) / tableSize;
+        List<Table> tables = new ArrayList<>();
+        for (int t = 0; t < count; t++) {
+            int size = n / count + (t < n % count ? 1 : 0);
+            List<Entrant> seats = new ArrayList<>();
+            seats.add(left.remove(0));
+            while (seats.size() < size) seats.add(left.remove(pairing == Pairing.SWISS ? leastMet(left, seats) : 0));
+            tables.add(new Table(round, t + 1, seats, rnd.nextLong()));
+        }
+        return tables;
+    }
+
+    // Among the next players, the one who met those already seated least often, the better standing on a tie
+    private int leastMet(List<Entrant> left, List<Entrant> seats) {
+        int best = 0, bestMet = Integer.MAX_VALUE;
+        for (int i = 0; i < Math.min(left.size(), WINDOW * tableSize); i++) {
+            int met = 0;
+            for (Entrant s: seats) met += left.get(i).met.getOrDefault(s.name, 0);
+            if (met < bestMet) {
+                best = i;
+                bestMet = met;
+            }
+        }
+        return best;
+    }
+
+    // Plays a round: bot tables on the pool, the others as real games on threads of their own
+    private void play(int round, List<Table> tables) throws IOException {
+        long start = System.nanoTime();
+        long steals = pool.getStealCount();
+        List<ForkJoinTask<?>> bots = new ArrayList<>();
+        for (Table t: tables)
+            if (!t.live()) bots.add(pool.submit(() -> playBots(t)));
+        List<Table> live = new ArrayList<>();
+        for (Table t: tables)
+            if (t.live()) {
+                setUp(t); // One after the other, so the tokens print in order
+                live.add(t);
+            }
+        ExecutorService threads = GameServer.threadPerTask("crazyeights-table");
+        List<Future<?>> running = new ArrayList<>();
+        for (Table t: live) running.add(threads.submit(() -> { playLive(t); return null; }));
+        for (ForkJoinTask<?> f: bots) f.join();
+        long botNanos = System.nanoTime() - start;
+        try {
+            for (Future<?> f: running) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IllegalStateException("A table failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            threads.shutdown();
+        }
+        long nanos = System.nanoTime() - start;
+
+        out.printf("Round %d: %d tables%n", round, tables.size());
+        for (Table t: tables) {
+            record(t);
+            report(t);
+        }
+        out.printf("Round %d took %.3f s", round, nanos / 1e9);
+        if (!bots.isEmpty()) {
+            long turns = 0;
+            for (Table t: tables)
+                if (!t.live()) turns += t.turns;
+            double s = botNanos / 1e9;
+            out.printf("; %d bot tables in %.3f s on a %d-thread pool: %.0f tables/s, %.0f deals/s, %.0f turns/s, %d steals",
+                bots.size(), s, pool.getParallelism(), bots.size() / s, (double) bots.size() * deals / s, turns / s,
+                pool.getStealCount() - steals);
+        }
+        out.println();
+    }
+
+    // Plays a bot table's deals in memory, each a fork-join task the idle threads can steal
+    private void playBots(Table t) {
+        List<BotStrategy> bots = new ArrayList<>();
+        for (Entrant e: t.seats) bots.add(e.bot);
+        Simulator sim = new Simulator(bots, GameManager.decksFor(bots.size())); // The shoe a real table would get
+        List<ForkJoinTask<Simulator.Outcome>> dealt = new ArrayList<>();
+        for (int d = 0; d < deals; d++) {
+            long seed = t.seed + d;
+            dealt.add(ForkJoinTask.adapt(() -> sim.game(seed)));
+        }
+        ForkJoinTask.invokeAll(dealt);
+        for (ForkJoinTask<Simulator.Outcome> f: dealt) {
+            Simulator.Outcome o = f.join();
+            t.add(o.winner, o.scores);
+            t.turns += o.turns;
+        }
+    }
+
+    // Creates the game of a table with humans, seats everyone with a fresh password and prints the humans' tokens
+    private void setUp(Table t) throws IOException {
+        t.game = GameStore.locate(games, prefix + "-r" + t.round + "-t" + t.number);
+        String admin = secret();
+        GameManager.init(t.game, false, p -> admin);
+        GameManager gm = new GameManager(t.game);
+        gm.useOutput(new PrintStream(OutputStream.nullOutputStream()));
+        gm.usePrompt(p -> admin);
+        Map<String, String> passwords = new HashMap<>();
+        StringBuilder script = new StringBuilder();
+        for (Entrant e: t.seats) {
+            passwords.put(e.name, secret());
+            script.append("add-user ").append(e.name).append(' ').append(passwords.get(e.name)).append('\n');
+        }
+        gm.batch(new BufferedReader(new StringReader(script.toString())), "admin");
+        t.admin = gm.login("admin", ttlMinutes);
+        t.tokens = new HashMap<>();
+        for (Entrant e: t.seats) {
+            gm.usePrompt(p -> passwords.get(e.name));
+            t.tokens.put(e.name, gm.login(e.name, ttlMinutes));
+        }
+        out.printf("Round %d table %d is played at %s%n", t.round, t.number, t.game);
+        for (Entrant e: t.seats)
+            if (e.bot == null) out.printf("  %s: --game %s --user %s --token %s%n", e.name, t.game, e.name, t.tokens.get(e.name));
+    }
+
+    // Deals a live table's games and plays its bot seats until each is over
+    private void playLive(Table t) throws IOException {
+        GameManager gm = new GameManager(t.game);
+        gm.setResident(true); // Follows the humans' moves through the game's watch
+        gm.useOutput(new PrintStream(OutputStream.nullOutputStream()));
+        SplittableRandom botRnd = new SplittableRandom(t.seed);
+        Map<String, Entrant> byName = new HashMap<>();
+        for (Entrant e: t.seats) byName.put(e.name, e);
+        for (int d = 0; d < deals; d++) {
+            gm.useToken(t.admin);
+            gm.start(t.seed + d, null);
+            Set<String> absent = new HashSet<>(); // Humans who timed out this deal; their turns are passed at once
+            long turn = -1, deadline = 0; // Version the current turn began at and when its human runs out of time
+            while (true) {
+                long seen = gm.watch().changes(); // Before the view, so a move made meanwhile still wakes us up
+                GameSnapshot v = gm.view();
+                if (v.state.equals("FINISHED")) {
+                    Simulator.Outcome o = result(t, v);
+                    t.add(o.winner, o.scores);
+                    break;
+                }
+                Entrant e = byName.get(v.seats.get(v.currentIdx));
+                if (e.bot == null && !absent.contains(e.name)) {
+                    if (v.version != turn) {
+                        turn = v.version;
+                        deadline = System.nanoTime() + (moveTimeoutSeconds > 0
+                            ? TimeUnit.SECONDS.toNanos(moveTimeoutSeconds) : Long.MAX_VALUE / 2);
+                    }
+                    if (gm.watch().await(seen, deadline) || gm.view().version != v.version) continue;
+                    out.printf("Round %d table %d: %s did not move within %d s, their turns are passed for the rest of the deal%n",
+                        t.round, t.number, e.name, moveTimeoutSeconds);
+                    absent.add(e.name);
+                }
+                try {
+                    if (e.bot == null) pass(gm, e, v, t.tokens.get(e.name));
+                    else move(gm, e, v, botRnd, t.tokens.get(e.name));
+                } catch (IllegalStateException | SecurityException | ConcurrentModificationException x) {
+                    if (gm.view().version != v.version) continue; // The view was stale
+                    out.printf("Round %d table %d: %s is stuck (%s), the deal ends without a winner%n",
+                        t.round, t.number, e.name, x.getMessage());
+                    t.add(-1, result(t, v).scores);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Plays the bot's turn through the game, as a player would
+    private static void move(GameManager gm, Entrant e, GameSnapshot v, SplittableRandom rnd, String token) throws IOException {
+        Player self = new Player(e.name);
+        self.restoreHand(v.hand(e.name));
+        long playable = self.playableMask(v.topDiscard);
+        Card c = null;
+        if (playable != 0 && e.bot.seesTable()) {
+            List<String> order = v.turnOrder();
+            int[] sizes = new int[order.size()];
+            for (int i = 0; i < sizes.length; i++) sizes[i] = v.hand(order.get(i)).size();
+            c = e.bot.choose(new BotStrategy.View(sizes, v.drawCount, v.discards()), self, v.topDiscard, playable, v.hasDrawn, rnd);
+        } else if (playable != 0) c = e.bot.choose(self, v.topDiscard, playable, v.hasDrawn, rnd);
+        gm.useToken(token);
+        if (c != null) gm.play(c.toString(), e.name);
+        else if (v.hasDrawn) gm.pass(e.name);
+        else gm.draw(e.name);
+    }
+
+    // Plays an absent human's turn: draws a card, or passes once they have drawn
+    private static void pass(GameManager gm, Entrant e, GameSnapshot v, String token) throws IOException {
+        gm.useToken(token);
+        if (v.hasDrawn) gm.pass(e.name);
+        else gm.draw(e.name);
+    }
+
+    // Winner and penalties of a finished game, in the table's seat order
+    private static Simulator.Outcome result(Table t, GameSnapshot v) {
+        int winner = -1;
+        int[] scores = new int[t.seats.size()];
+        for (int i = 0; i < scores.length; i++) {
+            Player p = new Player(t.seats.get(i).name);
+            p.restoreHand(v.hand(p.getName()));
+            scores[i] = p.score();
+            if (p.hasWon()) winner = i;
+        }
+        return new Simulator.Outcome(winner, scores, 0);
+    }
+
+    // Adds a finished table to its players' totals
+    private void record(Table t) {
+        int winner = t.ranking().get(0);
+        for (int i = 0; i < t.seats.size(); i++) {
+            Entrant e = t.seats.get(i);
+            e.tables++;
+            if (i == winner) e.tablesWon++;
+            e.deals += deals;
+            e.dealsWon += t.wins[i];
+            e.penalty += t.penalty[i];
+            for (Entrant o: t.seats)
+                if (o != e) e.met.merge(o.name, 1, Integer::sum);
+        }
+    }
+
+    private void report(Table t) {
+        StringBuilder sb = new StringBuilder();
+        List<Integer> r = t.ranking();
+        Entrant w = t.seats.get(r.get(0));
+        sb.append(String.format("  Table %d: %s won %d of %d deals", t.number, w.name, t.wins[r.get(0)], deals));
+        if (t.stalemates > 0) sb.append(" (").append(t.stalemates).append(" stalemated)");
+        sb.append("; penalties");
+        for (int i: r) sb.append(' ').append(t.seats.get(i).name).append(' ').append(t.penalty[i]);
+        out.println(sb);
+    }
+
+    // Prints every player ranked by tables won, then deals won, then fewest penalty points
+    private void standings() {
+        List<Entrant> l = new ArrayList<>(entrants);
+        l.sort(Comparator.comparingInt((Entrant e) -> -e.tablesWon).thenComparingInt(e -> -e.dealsWon)
+            .thenComparingLong(e -> e.penalty).thenComparing(e -> e.name));
+        out.printf("%4s %-16s %-12s %7s %7s %7s %7s %8s%n", "Rank", "Player", "Bot", "Tables", "Won", "Deals", "Won", "Penalty");
+        for (int i = 0; i < l.size(); i++) {
+            Entrant e = l.get(i);
+            out.printf("%4d %-16s %-12s %7d %7d %7d %7d %8d%n", i + 1, e.name, e.kind,
+                e.tables, e.tablesWon, e.deals, e.dealsWon, e.penalty);
+        }
+    }
+
+    // Random password for a seat, never shown: humans get a session token instead
+    private static String secret() {
+        byte[] b = new byte[18];
+        new SecureRandom().nextBytes(b);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+    }
+}
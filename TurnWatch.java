@@ -0,0 +1,133 @@
+/*
+Purpose: This class wakes up players waiting for their turn when the game changes, so they do not poll --order.
+Inside a process every committed command signals it directly, which is all the daemon needs for its own moves;
+moves made by other processes are seen through a WatchService on the game directory, one for all games.
+Games in a store file share the store's directory, so an event there only signals the games whose slot generation moved.
+Waiters recheck the turn themselves after every wakeup, so a wakeup for an unrelated change is harmless.
+Listeners are told the same way, for the game server's pushes; they must hand the work off and return.
+*/
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+public class TurnWatch {
+    private static final Map<Path, TurnWatch> WATCHES = new ConcurrentHashMap<>(); // One per game
+    // Longest sleep without a recheck, in case the file system loses an event (e.g. on a network mount)
+    private static final long RECHECK_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final Map<WatchKey, List<TurnWatch>> KEYS = new HashMap<>(); // Watched directories; guarded by itself
+    private static WatchService service; // Shared by every watched directory; guarded by KEYS
+
+    private final Path dir; // Watched directory: the game directory, or the directory of its store file
+    private final LongSupplier generation; // Changes with the game on disk, when dir holds other games too; else null
+    private long seenGeneration; // Value of generation at the last file event; only used by the watch thread
+    private volatile long changes = 0; // Changes seen so far; only changed while holding this
+    private boolean watching = false; // True once the directory is registered; guarded by this
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>(); // Run on every change
+
+    private TurnWatch(Path dir, LongSupplier generation) {
+        this.dir = dir;
+        this.generation = generation;
+    }
+
+    // Returns the watch of a game directory
+    public static TurnWatch of(Path dir) {
+        Path key = dir.toAbsolutePath().normalize();
+        return WATCHES.computeIfAbsent(key, k -> new TurnWatch(k, null));
+    }
+
+    // Returns the watch of a game kept under key in a shared directory, told apart by its generation
+    static TurnWatch of(Path key, Path dir, LongSupplier generation) {
+        return WATCHES.computeIfAbsent(key, k -> new TurnWatch(dir.toAbsolutePath().normalize(), generation));
+    }
+
+    // Number of changes so far; read it before checking the game, then await that number. Takes no lock.
+    public long changes() {
+        return changes;
+    }
+
+    // Tells every waiter of this process that the game changed
+    public synchronized void signal() {
+        changes++;
+        notifyAll();
+        for (Runnable l: listeners) l.run();
+    }
+
+    // Runs the listener after every change from now on, on the thread that signals it (often holding the game lock)
+    public void listen(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    // Waits until there was a change after seen or until deadline (a System.nanoTime value); false when it passed
+    public synchronized boolean await(long seen, long deadline) throws IOException {
+        start();
+        while (changes == seen) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, Math.min(left, RECHECK_NANOS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting");
+            }
+            if (changes == seen && left > RECHECK_NANOS) return true; // Recheck anyway now and then
+        }
+        return true;
+    }
+
+    // Starts watching the game directory for changes by other processes, once per process
+    public synchronized void start() throws IOException {
+        if (watching) return;
+        if (generation != null) seenGeneration = generation.getAsLong();
+        synchronized (KEYS) { // Registering a directory again returns the same key
+            KEYS.computeIfAbsent(dir.register(service(), StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), k -> new ArrayList<>()).add(this);
+        }
+        watching = true;
+    }
+
+    // Signals after a file event in the watched directory, unless the generation says the game did not change
+    private void fileEvent() {
+        if (generation != null) {
+            long g = generation.getAsLong();
+            if (g == seenGeneration) return;
+            seenGeneration = g;
+        }
+        signal();
+    }
+
+    // The process's one WatchService and the thread taking its events, started on first use.
+    // Linux allows a user only 128 inotify instances, so a server hosting many games cannot have one per game.
+    private static WatchService service() throws IOException {
+        synchronized (KEYS) {
+            if (service != null) return service;
+            WatchService ws = FileSystems.getDefault().newWatchService();
+            Thread t = new Thread(() -> {
+                try {
+                    while (true) {
+                        WatchKey key = ws.take();
+                        key.pollEvents(); // Which file changed does not matter, the waiters reread the turn
+                        List<TurnWatch> watches;
+                        synchronized (KEYS) { // Registered under the same lock, so the key is there
+                            watches = new ArrayList<>(KEYS.getOrDefault(key, Collections.emptyList()));
+                        }
+                        for (TurnWatch w: watches) w.fileEvent();
+                        if (!key.reset()) // The game directory is gone
+                            synchronized (KEYS) {
+                                KEYS.remove(key);
+                            }
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    // Stopped
+                }
+            }, "crazyeights-watch");
+            t.setDaemon(true);
+            t.start();
+            return service = ws;
+        }
+    }
+}
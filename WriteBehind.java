@@ -0,0 +1,224 @@
+/*
+Purpose: This class is the write-behind stage between a move and the disk, with three durability modes.
+sync (the default): every journal append is forced to disk before the move returns, one fsync per move.
+group: the append only writes the records, which other processes see at once, and queues the file; the move
+waits for the next group commit, in which one flusher thread forces every queued file once, however many moves
+went into it, so a store file holding many games takes a single fsync for all of them.
+periodic: the move returns at once and the flusher forces the queued files every flush window; a power loss
+can lose the last window, a crash of the process alone loses nothing, as the records are already written.
+The queue is bounded: when it fills up, producers wait for the flusher, and a periodic flush starts early.
+Writes still happen under the game lock, so the version check across processes is unchanged; what is deferred
+and merged is the fsync.
+*/
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class WriteBehind {
+    public enum Mode { SYNC, GROUP, PERIODIC }
+
+    public static final long DEFAULT_FLUSH_MS = 20; // Periodic flush window unless --flush-ms says otherwise
+    static final int CAPACITY = 4096; // Unforced writes queued before producers have to wait
+    private static final int FORCERS = 8; // fsyncs of one flush run at once: they wait on the disk, not the CPU
+
+    private static volatile Mode mode = Mode.SYNC;
+    private static volatile long windowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FLUSH_MS);
+    private static final BlockingQueue<Pending> QUEUE = new ArrayBlockingQueue<>(CAPACITY);
+    private static final ThreadLocal<Pending> LAST = new ThreadLocal<>(); // Newest write of this thread not awaited yet
+    private static volatile boolean urgent = false; // A drain waits, so a periodic flush should not
+    private static Thread flusher; // Started by the first write behind; guarded by WriteBehind.class
+    private static final ExecutorService FORCING = Executors.newFixedThreadPool(FORCERS, r -> {
+        Thread t = new Thread(r, "crazyeights-forcer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // A file written without an fsync, and what became of it; store is null for a drain marker
+    private static class Pending {
+        final GameStore store;
+        final String file;
+        private boolean done = false; // Guarded by this
+        private IOException failure; // Set if forcing the file failed
+
+        Pending(GameStore store, String file) {
+            this.store = store;
+            this.file = file;
+        }
+
+        synchronized void finish(IOException e) {
+            failure = e;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted");
+                }
+            }
+            if (failure != null) throw new IOException("Forcing " + store + " failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    // Sets the mode and the periodic flush window; called at startup, before any move
+    public static void configure(Mode m, long flushMillis) {
+        if (flushMillis < 1) throw new IllegalArgumentException("--flush-ms must be at least 1");
+        mode = m;
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+    }
+
+    // Mode named on the command line: sync, group or periodic
+    public static Mode parse(String s) {
+        switch (s) {
+            case "sync": return Mode.SYNC;
+            case "group": return Mode.GROUP;
+            case "periodic": return Mode.PERIODIC;
+            default: throw new IllegalArgumentException("Unknown durability " + s + " (sync, group or periodic)");
+        }
+    }
+
+    // True when appends force themselves, as in sync mode
+    public static boolean syncing() {
+        return mode == Mode.SYNC;
+    }
+
+    // Queues a file the caller wrote without forcing it; waits while the queue is full
+    static void written(GameStore store, String file) {
+        Pending p = new Pending(store, file);
+        Thread f = start();
+        try {
+            if (!QUEUE.offer(p)) {
+                LockSupport.unpark(f); // Full: flush now rather than at the end of the window
+                QUEUE.put(p);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted");
+        }
+        if (QUEUE.size() >= CAPACITY / 2) LockSupport.unpark(f);
+        LAST.set(p);
+    }
+
+    // In group mode, waits until this thread's last write is on disk; called after the game lock is released
+    static void awaitOwn() throws IOException {
+        Pending p = LAST.get();
+        if (p == null) return;
+        LAST.remove();
+        if (mode == Mode.GROUP) p.await();
+    }
+
+    // Forces everything queued so far, e.g. before the process exits
+    public static void drain() {
+        Thread f;
+        synchronized (WriteBehind.class) {
+            f = flusher;
+        }
+        if (f == null) return; // Nothing was ever written behind
+        Pending marker = new Pending(null, "");
+        try {
+            QUEUE.put(marker);
+            urgent = true;
+            LockSupport.unpark(f);
+            marker.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // A marker never fails
+        }
+    }
+
+    // The flusher thread, started on first use; a shutdown hook drains the queue when the process exits
+    private static synchronized Thread start() {
+        if (flusher == null) {
+            flusher = new Thread(WriteBehind::run, "crazyeights-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(WriteBehind::drain, "crazyeights-drain"));
+        }
+        return flusher;
+    }
+
+    // Takes whatever queued up while the last flush ran (group), or for the rest of the window (periodic), and flushes it.
+    // It never returns: writers in group mode and producers of a full queue depend on it.
+    private static void run() {
+        List<Pending> batch = new ArrayList<>();
+        long last = System.nanoTime();
+        while (true) {
+            try {
+                batch.add(QUEUE.take());
+            } catch (InterruptedException e) {
+                continue; // Nothing should interrupt the flusher; keep serving the queue
+            }
+            if (mode == Mode.PERIODIC)
+                for (long left; (left = last + windowNanos - System.nanoTime()) > 0 && !urgent && QUEUE.size() < CAPACITY / 2; )
+                    LockSupport.parkNanos(left);
+            urgent = false;
+            QUEUE.drainTo(batch);
+            flush(batch);
+            batch.clear();
+            last = System.nanoTime();
+        }
+    }
+
+    // Forces each file of the batch once, however many writes went into it, in parallel, then releases the writers.
+    // Anything thrown while forcing a file fails that file's writes; every writer is released whatever happens.
+    private static void flush(List<Pending> batch) {
+        Map<Pending, IOException> failed = new ConcurrentHashMap<>();
+        try {
+            Map<Path, List<Pending>> files = new LinkedHashMap<>();
+            for (Pending p: batch) {
+                if (p.store == null) continue;
+                try {
+                    files.computeIfAbsent(p.store.forceKey(p.file), k -> new ArrayList<>()).add(p);
+                } catch (RuntimeException e) {
+                    failed.put(p, failure(e));
+                }
+            }
+            if (!files.isEmpty()) force(files, failed);
+        } catch (Throwable t) { // E.g. the pool refused the forces: nothing of the batch is known to be on disk
+            for (Pending p: batch)
+                if (p.store != null) failed.putIfAbsent(p, failure(t));
+        } finally {
+            if (mode != Mode.GROUP) { // Nobody waits for the result, so it is reported here
+                Set<String> reported = new LinkedHashSet<>();
+                for (Map.Entry<Pending, IOException> e: failed.entrySet())
+                    reported.add("Forcing " + e.getKey().store + " " + e.getKey().file + " failed: " + e.getValue().getMessage());
+                for (String r: reported) System.err.println(r);
+            }
+            for (Pending p: batch) p.finish(failed.get(p));
+        }
+    }
+
+    // Forces the files, one task per file, and records the writes of each file that failed
+    private static void force(Map<Path, List<Pending>> files, Map<Pending, IOException> failed) throws Exception {
+        try (Metrics.Command m = Metrics.start("flush")) {
+            List<Callable<Void>> forces = new ArrayList<>();
+            for (List<Pending> same: files.values())
+                forces.add(() -> {
+                    Pending p = same.get(0);
+                    try {
+                        p.store.force(p.file);
+                    } catch (Throwable x) {
+                        for (Pending q: same) failed.put(q, failure(x));
+                    }
+                    return null;
+                });
+            if (forces.size() == 1) forces.get(0).call();
+            else FORCING.invokeAll(forces);
+            for (int i = 0; i < files.size(); i++) Metrics.wrote(0); // Counted here, as the forces may run on other threads
+            Metrics.lap(Metrics.Phase.PERSIST);
+            if (!failed.isEmpty()) m.failed();
+        }
+    }
+
+    private static IOException failure(Throwable t) {
+        return t instanceof IOException ? (IOException) t : new IOException(t.toString(), t);
+    }
+}
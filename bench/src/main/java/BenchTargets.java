@@ -0,0 +1,174 @@
+/*
+Purpose: This class is the default-package side of the JMH benchmarks.
+It implements crazyeights.bench.Targets with the real Card, Deck, Player and GameManager classes,
+so the benchmarks measure the game code itself and only pay for one interface call.
+*/
+
+import crazyeights.bench.Targets;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class BenchTargets implements Targets {
+    private static final Map<String, String> PASSWORDS = Map.of("admin", "adm", "Alice", "al", "Bob", "bo");
+
+    @Override public int parseCard(String code) { return Card.fromString(code).ordinal(); }
+
+    @Override public String formatCard(int ordinal) { return Card.of(ordinal).toString(); }
+
+    @Override public boolean matches(int card, int top) { return Card.of(card).matches(Card.of(top)); }
+
+    @Override public Table table(long seed) { return new MemoryTable(seed); }
+
+    @Override public Bot bot(String name, long seed) { return new Position(BotStrategy.of(name), seed); }
+
+    @Override public Game game(Path dir, boolean binary, boolean resident) throws IOException {
+        return new DiskGame(dir, binary, resident);
+    }
+
+    // A two-player deal a few greedy turns in, where the first player has a choice to make
+    private static class Position implements Bot {
+        private final BotStrategy bot;
+        private final Deck deck;
+        private final Player self = new Player("bench"), other = new Player("other");
+        private final SplittableRandom rnd;
+        private final BotStrategy.View view;
+
+        Position(BotStrategy bot, long seed) {
+            this.bot = bot;
+            rnd = new SplittableRandom(seed);
+            deck = new Deck(seed);
+            self.dealInitial(deck.deal(5));
+            other.dealInitial(deck.deal(5));
+            deck.start();
+            for (int turn = 0; turn < 6 || Long.bitCount(self.playableMask(deck.topDiscard())) < 2; turn++) {
+                Player p = turn % 2 == 0 ? self : other;
+                long playable = p.playableMask(deck.topDiscard());
+                if (playable == 0) p.draw(deck);
+                else p.play(BotStrategy.GREEDY.choose(p, deck.topDiscard(), playable, false, rnd), deck);
+                if (self.handSize() == 0 || other.handSize() == 0) throw new IllegalStateException("Seed " + seed + " ends too soon");
+            }
+            view = new BotStrategy.View(new int[] {self.handSize(), other.handSize()}, deck.drawCount(), deck.discardCounts());
+        }
+
+        @Override public int decide() {
+            Card top = deck.topDiscard();
+            Card c = bot.choose(view, self, top, self.playableMask(top), false, rnd);
+            return c == null ? -1 : c.ordinal();
+        }
+    }
+
+    // Deck and players held in memory
+    private static class MemoryTable implements Table {
+        private final long seed;
+        private Deck deck;
+        private final Player player = new Player("bench");
+
+        MemoryTable(long seed) {
+            this.seed = seed;
+            deck = new Deck(seed);
+            player.dealInitial(deck.deal(5));
+            deck.start();
+        }
+
+        @Override public int drawAndDiscard() {
+            Card c = deck.draw();
+            deck.play(c);
+            return c.ordinal();
+        }
+
+        @Override public int drawWithoutReshuffle() {
+            if (deck.needsReshuffle()) deck = Deck.fromPiles(UNSHUFFLED, Collections.emptyList(), seed, 0);
+            Card c = deck.draw();
+            deck.play(c);
+            return c.ordinal();
+        }
+
+        @Override public int drawAndPlay() {
+            if (!deck.needsReshuffle() || deck.discardCount() > 1) player.draw(deck);
+            long playable = player.playableMask(deck.topDiscard());
+            if (playable == 0) return -1;
+            Card c = Card.of(Long.numberOfTrailingZeros(playable));
+            player.play(c, deck);
+            return c.ordinal();
+        }
+
+        private static final List<Card> UNSHUFFLED = new ArrayList<>();
+        static {
+            for (int o = 0; o < Card.COUNT; o++) UNSHUFFLED.add(Card.of(o));
+        }
+    }
+
+    // Two-player game in a directory, played by parsing the command output like a client would
+    private static class DiskGame implements Game {
+        private final GameManager gm;
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        private long seed = 1;
+
+        DiskGame(Path dir, boolean binary, boolean resident) throws IOException {
+            AuthManager.Prompt prompt = p -> PASSWORDS.get(p.startsWith("Password for ")
+                ? p.substring(13, p.length() - 2) : "admin");
+            GameManager.init(dir.toString(), binary, prompt);
+            gm = new GameManager(dir.toString());
+            gm.setResident(resident);
+            gm.usePrompt(prompt);
+            gm.useOutput(new PrintStream(buf, true));
+            gm.addUser("Alice");
+            gm.addUser("Bob");
+            gm.start(seed);
+        }
+
+        @Override public void look() throws IOException {
+            current();
+            out();
+        }
+
+        @Override public void turn() throws IOException {
+            String user = current();
+            String seen = out();
+            Card top = Card.fromString(seen.split("Top Discard: ")[1].trim());
+            String card = playable(seen, top);
+            if (card == null) {
+                gm.draw(user);
+                card = playable(out(), top); // draw prints the new hand
+            }
+            if (card != null) play(card, user);
+            else gm.pass(user);
+            out();
+        }
+
+        // First card of the hand printed in s that matches top, or null
+        private static String playable(String s, Card top) {
+            String cards = s.substring(s.indexOf("Hand"));
+            cards = cards.substring(cards.indexOf('[') + 1, cards.indexOf(']'));
+            if (cards.isEmpty()) return null;
+            for (String c: cards.split(", "))
+                if (Card.fromString(c).matches(top)) return c;
+            return null;
+        }
+
+        private void play(String card, String user) throws IOException {
+            gm.play(card, user);
+            if (out().contains(" won!")) gm.start(++seed);
+        }
+
+        // Runs order and cards for whoever is next; returns their name
+        private String current() throws IOException {
+            gm.order("Alice");
+            String user = out().split("\n")[1].trim();
+            gm.cards(user, user, user);
+            return user;
+        }
+
+        @Override public String token(String user) throws IOException {
+            return gm.login(user, 24 * 60);
+        }
+
+        // Output since the last call
+        private String out() {
+            String s = buf.toString();
+            buf.reset();
+            return s;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+Purpose: Benchmarks of Card parsing, formatting and matching, the calls every command makes per card.
+*/
+package crazyeights.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CardBench {
+    private static final String[] CODES = {"AC", "10H", "QS", "8D", "7C", "KH", "2S", "JD"};
+
+    private Targets t;
+    private int i;
+
+    @Setup
+    public void setup() {
+        t = Targets.load();
+    }
+
+    @Benchmark
+    public int fromString() {
+        return t.parseCard(CODES[i++ & 7]);
+    }
+
+    @Benchmark
+    public String toStringCard() {
+        return t.formatCard(i++ % 52);
+    }
+
+    @Benchmark
+    public boolean matches() {
+        int n = i++;
+        return t.matches(n % 52, (n >>> 6) % 52);
+    }
+}
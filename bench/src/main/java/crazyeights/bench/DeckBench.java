@@ -0,0 +1,40 @@
+/*
+Purpose: Benchmarks of Deck.draw with and without the reshuffle of the discard pile, and of Player.draw/play.
+Each operation puts the card back, so the piles cycle and the state stays steady between iterations.
+*/
+package crazyeights.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeckBench {
+    private Targets.Table table;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        table = Targets.load().table(42);
+    }
+
+    // Every 51st draw pays for reshuffleDiscardIntoDraw
+    @Benchmark
+    public int drawWithReshuffle() {
+        return table.drawAndDiscard();
+    }
+
+    // Every 52nd draw starts a new unshuffled pile instead
+    @Benchmark
+    public int drawWithoutReshuffle() {
+        return table.drawWithoutReshuffle();
+    }
+
+    @Benchmark
+    public int playerDrawAndPlay() {
+        return table.drawAndPlay();
+    }
+}
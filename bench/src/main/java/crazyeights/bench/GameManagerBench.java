@@ -0,0 +1,55 @@
+/*
+Purpose: Benchmarks of whole GameManager commands against a game in a temp directory:
+loading the state (turn order and hand), and a full client turn that also journals the move.
+Runs once as the CLI does (state loaded from disk every command) and once resident as in the daemon.
+*/
+package crazyeights.bench;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GameManagerBench {
+    @Param({"text", "binary"})
+    public String format;
+
+    @Param({"false", "true"})
+    public boolean resident;
+
+    private Path dir;
+    private Targets.Game game;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("c8bench");
+        game = Targets.load().game(dir.resolve("game"), format.equals("binary"), resident);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    // order + cards: loadState() unless resident, where both read the published GameSnapshot
+    @Benchmark
+    public void look() throws IOException {
+        game.look();
+    }
+
+    // look, then play or draw and play/pass; every move is appended to the journal with an fsync
+    @Benchmark
+    public void turn() throws IOException {
+        game.turn();
+    }
+}
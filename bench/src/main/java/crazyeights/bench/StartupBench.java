@@ -0,0 +1,66 @@
+/*
+Purpose: Cold start of a CLI command when no daemon runs: the time from launching
+java -jar crazyeights.jar --cards until its first byte of output, with class data sharing off,
+with the JDK's default archive, and with the AppCDS archive trained by the root build.
+Build the root module first (mvn -B package in the parent directory); -Dcrazyeights.target=<dir> points elsewhere.
+*/
+package crazyeights.bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartupBench {
+    @Param({"off", "default", "appcds"})
+    public String cds;
+
+    private Path dir;
+    private final List<String> command = new ArrayList<>();
+    private Process process; // Started by the measured call, reaped after it
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path target = Paths.get(System.getProperty("crazyeights.target", "../target"));
+        Path jar = target.resolve("crazyeights.jar"), jsa = target.resolve("crazyeights.jsa");
+        if (!Files.exists(jar) || cds.equals("appcds") && !Files.exists(jsa))
+            throw new IllegalStateException("No " + jar + " or " + jsa + "; build the root module first");
+        dir = Files.createTempDirectory("c8startup");
+        Path game = dir.resolve("game");
+        String token = Targets.load().game(game, false, false).token("Alice");
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (cds.equals("off")) command.add("-Xshare:off");
+        if (cds.equals("appcds")) command.add("-XX:SharedArchiveFile=" + jsa);
+        command.addAll(Arrays.asList("-jar", jar.toString(), "--cards", "Alice", "--user", "Alice",
+            "--token", token, "--game", game.toString()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    // Launches the command and waits for the first byte it prints
+    @Benchmark
+    public int firstOutput() throws IOException {
+        process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        return process.getInputStream().read();
+    }
+
+    // Not timed: the rest of the output and the JVM exit
+    @TearDown(Level.Invocation)
+    public void reap() throws IOException, InterruptedException {
+        String rest = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0) throw new IllegalStateException("The command failed: " + rest);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+Purpose: This interface is what the benchmarks see of the game.
+Code in a named package cannot use the default-package game classes, so BenchTargets implements
+this interface next to them and load() finds it by name. Cards cross the boundary as ordinals.
+*/
+package crazyeights.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public interface Targets {
+    // Parses a card code such as "10H" and returns its ordinal
+    int parseCard(String code);
+
+    // Formats the card with the given ordinal
+    String formatCard(int ordinal);
+
+    // Card.matches for two card ordinals
+    boolean matches(int card, int top);
+
+    // A deck and two players in memory, dealt from seed
+    Table table(long seed);
+
+    // A bot by BotStrategy.of name, deciding a two-player position dealt from seed
+    Bot bot(String name, long seed);
+
+    // A started two-player game in dir, in the text or binary format
+    Game game(Path dir, boolean binary, boolean resident) throws IOException;
+
+    // Deck and Player operations on an in-memory table
+    interface Table {
+        // Draws a card and discards it again; the draw pile is reshuffled from the discards whenever it runs out
+        int drawAndDiscard();
+
+        // Same, but an empty draw pile is replaced by a fresh unshuffled one instead of reshuffling
+        int drawWithoutReshuffle();
+
+        // Player.draw, then Player.play of a playable card if there is one
+        int drawAndPlay();
+    }
+
+    // A bot and the position it decides
+    interface Bot {
+        // One decision on the position, without playing it: a card ordinal, or -1 to draw
+        int decide();
+    }
+
+    // A game on disk driven through the public GameManager commands
+    interface Game {
+        // Reads the turn order and hand of the current player (loadState() when not resident)
+        void look() throws IOException;
+
+        // One client turn: look, then play a matching card, or draw and then play or pass; restarts a finished game
+        void turn() throws IOException;
+
+        // Session token of a player, so a CLI process can run commands without a console
+        String token(String user) throws IOException;
+    }
+
+    // The adapter compiled next to the game classes
+    static Targets load() {
+        try {
+            return (Targets) Class.forName("BenchTargets").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchTargets is missing from the classpath", e);
+        }
+    }
+}